@@ -12,42 +12,151 @@
  * 
  * Read the code to find all the places to specify options.
  */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.output.NullWriter;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
 
 public class DirList {
     static final DirList x = new DirList();
-    int progressCounter = 0;
+    static final ScanMetrics metrics = new ScanMetrics(); // shared by all the walker, hashing and db threads
         // User specified options
         static final boolean noTextDir = true; // suppress dir list in a file (only db output)
         static final boolean clearDB = false; // start clean or reuse previous DB of files
         // String[] rootDirectories= {/*"C:\\webserver", */"C:\\ProgramInstallations\\",
         //       "C:\\Users\\bike1\\", "F:\\"};
         static final String[] rootDirectories= {"D:\\"};
+        static String[] roots; // directories on the command line, otherwise the rootDirectories
         static final String dirListFile = "dirlist.txt";
         static final String dbFile = "dirlist.db";
+        static final String filterFile = "dirlist-filter.txt"; // directories and files not to list; see PathFilter for the rules (without the file its DEFAULT_FILTER_RULES)
+        static PathFilter pathFilter; // compiled from the filterFile when the program starts
+        static String filesTable = "files"; // table the file rows are written to; file_rows if the DB is normalizedDirs; set when the DB is opened
+        static final boolean nioWalker = false; // Files.walkFileTree reading each entry's attributes once instead of the File walk; sequential
+        static final int walkerParallelism = 0; // 0 is the sequential recursive walk; > 0 is the number of fork/join threads walking each root
+        static final int virtualThreadsPerRoot = 0; // > 0 lists each directory and hashes each file on its own virtual thread (Java 21+; older ones use the fork/join walker of this many threads), with at most this many listing or hashing at once per root
+        static final boolean deviceScheduler = false; // walk the roots on different devices (FileStores) at the same time, the roots of one device one after another; not with incremental
+        static final int hddConcurrency = 1; // with deviceScheduler, threads walking and hashing a root on a spinning disk, or on a device of unknown kind (1 is the sequential walk; > 1 the fork/join or virtual thread walk)
+        static final int ssdConcurrency = 16; // with deviceScheduler, threads walking and hashing a root on an SSD or NVMe drive (told apart only on Linux)
+        static final Map<String, Integer> deviceConcurrency = Map.of(); // with deviceScheduler, threads for the device of a root directory as given, e.g. Map.of("E:\\", 2); overrides the two above
+        static final int physicalOrderBatch = 0; // > 0 holds this many listed files and hashes them by inode (fileKey) so a spinning disk reads mostly forward; 0 hashes each file as it's listed
+        static final boolean sizeFirst = false; // list all sizes first then hash only files whose size matches another file (unique sizes get a NULL crc)
+        static final int partialHashSample = 4096; // with sizeFirst, same size files are first compared by a phash of this many bytes at the head and tail; 0 to always read whole files
+        static final int pipelineHashers = 0; // > 0 hashes on this many threads and writes the db and text list on one more thread, fed by the walk through bounded queues; 0 does it all inline in the walk
+        static final int pipelineQueueSize = 10000; // files waiting for each pipeline stage before the stage feeding it has to wait
+        static final String hashAlgorithm = "CRC32"; // CRC32, CRC32C (faster), XXH64 (64 bits so far fewer false duplicates) or SHA-256 (first 64 bits); a DB keeps the one it was made with
+        static final int hashBufferSize = 8192*8; // bytes read at a time by calculateHash
+        static final long mmapHashThreshold = Long.MAX_VALUE; // files this big or bigger are memory mapped to hash them; only for volumes nothing writes to during the scan, since a mapped file truncated meanwhile kills the JVM (SIGBUS) where no catch can help
+        static final int insertBatchSize = 1000; // rows sent to SQLite together with one executeBatch; 1 for a round trip per row
+        static final boolean bulkLoadProfile = true; // fast SQLite settings (WAL, syncs only at WAL checkpoints, big cache and pages, memory temp store, mmap); the WAL is checkpointed into the db after the COMMIT
+        static final boolean normalizedDirs = false; // new DB only; directories in a dirs table and files rows in file_rows point to them by dir_id; a files view has the usual columns
+        static final boolean postLoadIndexes = true; // drop the crc, size and name indexes during the scan, build them after it and fill the duplicate_groups table; an incremental rescan keeps the indexes and refills only the groups of the sizes it changed
+        static final boolean analyzeAfterLoad = false; // update the query planner statistics after the COMMIT
+        static final boolean vacuumAfterLoad = false; // rebuild the db file after the COMMIT (slow; reclaims space left by deletes)
+        static final int checkpointSeconds = 0; // > 0 commits at least this often and records finished directories so an interrupted scan can be run again with --resume; 0 is one all or nothing transaction
+        static boolean resume = false; // --resume on the command line; skip the directories finished before the interruption
+        static final boolean incremental = false; // with a reused DB, rehash only new or changed files (by size, modified time and file key), update their rows and delete rows of files now gone; the text list has only the new or changed files
+        static final String sortTextBy = ""; // crc, size, path or name sorts the text list (merged from sorted runs on the disk); empty for the walk's order
+        static final int sortRunRows = 1_000_000; // text list rows held in memory before a sorted run is written to a temp file
+        static final int progressSeconds = 5; // print the rates, latencies and an ETA this often; 0 for none
+        static final boolean inMemoryDuplicates = false; // no db; find the duplicates in memory and list only them, biggest waste first, in the text file (or the console if noTextDir)
         
+    static final String CREATE_FILES_TABLE = "CREATE TABLE IF NOT EXISTS files (crc LONG, name TEXT, path TEXT, size LONG, phash LONG, modified LONG, filekey TEXT);";
+
     public static void main(String[] args) throws Exception {
+        resume = Arrays.asList(args).contains("--resume");
+        roots = Arrays.stream(args).filter(arg -> !arg.startsWith("--")).toArray(String[]::new);
+        if (roots.length == 0) {
+          roots = rootDirectories;
+        }
+        pathFilter = PathFilter.load(filterFile);
 
         try
-         (PrintWriter textDirList =
-              new PrintWriter(
-                  noTextDir ? NullWriter.INSTANCE: new FileWriter(dirListFile));) {
+         (TextListWriter textDirList =
+              noTextDir ? null : new TextListWriter(new FileWriter(dirListFile), inMemoryDuplicates ? "" : sortTextBy);) {
+          if (inMemoryDuplicates) {
+            findDuplicatesInMemory(noTextDir ? new TextListWriter(new OutputStreamWriter(System.out), "") : textDirList);
+            return;
+          }
+
           String driverTopLevelDomain = "org";
           String driverDomainNameAndSubProtocol = "sqlite";
           String protocol = "JDBC";
@@ -56,7 +165,7 @@ public class DirList {
           // otherwise add new files to previous db.
           var db = new File(dbFile);
           if (db.exists()) {
-            if (clearDB) {
+            if (clearDB && !resume) {
               System.out.println("Successfully deleted previous db: " + db.delete() + "."); // force clean start for the db; could also use SQL delete, vacuum, truncate, drop
             }
             else {
@@ -81,36 +190,120 @@ public class DirList {
 
               // add the requested directory listings to the db
               try {
+              if (bulkLoadProfile) {
+                unpreparedStatement.execute("PRAGMA page_size = 65536"); // before BEGIN IMMEDIATE writes a new db's header
+              }
               // If this fails with SQLITE_BUSY or SQLITE_LOCKED, the database is locked.
               var checkLockedLock = "BEGIN IMMEDIATE";
               var clearCheckLockedLock = "ROLLBACK";
               unpreparedStatement.execute(checkLockedLock);
               unpreparedStatement.execute(clearCheckLockedLock);
 
-              // Create a table if it doesn't exist
-              var createTableSQL = "CREATE TABLE IF NOT EXISTS files (crc LONG, name TEXT, path TEXT, size LONG);";
-              unpreparedStatement.executeUpdate(createTableSQL);
-              System.out.println("Table created."); // or could mean already exists but this program initially deletes the db
+              if (bulkLoadProfile) {
+                applyBulkLoadProfile(unpreparedStatement); // before BEGIN TRANSACTION since synchronous can't change inside one
+              }
+
+              // the schema of a previous db wins over the normalizedDirs option
+              if (hasTable(unpreparedStatement, "file_rows") || (normalizedDirs && !hasTable(unpreparedStatement, "files"))) {
+                filesTable = "file_rows";
+                createNormalizedTables(unpreparedStatement);
+                System.out.println("Normalized tables created.");
+              }
+              else {
+                if (normalizedDirs) {
+                  System.out.println("Previous db has a files table so it isn't normalized.");
+                }
+                // Create a table if it doesn't exist
+                unpreparedStatement.executeUpdate(CREATE_FILES_TABLE);
+                addMissingColumn(unpreparedStatement, "files", "phash", "LONG"); // db from before the partial hash
+                addMissingColumn(unpreparedStatement, "files", "modified", "LONG"); // db from before incremental rescans
+                addMissingColumn(unpreparedStatement, "files", "filekey", "TEXT");
+                System.out.println("Table created."); // or could mean already exists but this program initially deletes the db
+              }
+              unpreparedStatement.executeUpdate("CREATE TABLE IF NOT EXISTS scan_progress (dir TEXT PRIMARY KEY, state INTEGER)");
 
               // start one big transaction that ends with a commit (or rollback if something goes wrong)
               var startTransaction = "BEGIN TRANSACTION";
               unpreparedStatement.executeUpdate(startTransaction);
               System.out.println("Db initialized.");
+
+              checkHashAlgorithm(unpreparedStatement); // hashes of different algorithms can't be compared
+
+              if (postLoadIndexes && !incremental) {
+                dropIndexes(unpreparedStatement); // inserts don't have to maintain them during the walk
+              }
   
               Filewalker fw = x.new Filewalker(textDirList, DBconnection);
+              fw.loadScanProgress();
+              var reporter = ProgressReporter.start(ScanMetrics.previousEntries(DBconnection, String.join(";", roots)));
 
-              for (var rootDirectory : rootDirectories) {
-                System.out.println("Start finding desired (filtered) files in " + rootDirectory + ".");
-                fw.walk(rootDirectory); // search for files and directories
+              if (deviceScheduler && !incremental) {
+                if (pipelineHashers > 0) {
+                  fw.startPipeline(); // one pipeline shared by all the devices
+                }
+                new DeviceScheduler(roots).walk(fw);
+                if (pipelineHashers > 0) {
+                  fw.finishPipeline();
+                }
+                fw.hashInPhysicalOrder();
+                fw.flush();
               }
+              else {
+                for (var rootDirectory : roots) {
+                  System.out.println("Start finding desired (filtered) files in " + rootDirectory + ".");
+                  if (incremental) {
+                    fw.loadPreviousListing(rootDirectory);
+                  }
+                  if (pipelineHashers > 0) {
+                    fw.startPipeline();
+                  }
+                  fw.walkRoot(rootDirectory);
+                  if (pipelineHashers > 0) {
+                    fw.finishPipeline(); // wait for the files still being hashed or written
+                  }
+                  fw.hashInPhysicalOrder(); // the last partial batches of this root
+                  fw.flush(); // rows still in the last partial batch of this root
+                  if (incremental) {
+                    fw.deleteDisappeared();
+                  }
+                }
+              }
+              if (sizeFirst) {
+                System.out.println("\nHashing files whose size matches another file.");
+                fw.storeSizeCollisions(); // second phase after all roots so duplicates across roots are found
+                fw.flush();
+              }
+              if (postLoadIndexes) {
+                // all the groups after an interrupted scan whose checkpoints committed other changes
+                createIndexesAndDuplicateGroups(unpreparedStatement, incremental && !fw.unfinishedScanFound ? fw.changedSizes : null);
+              }
+              unpreparedStatement.executeUpdate("DELETE FROM scan_progress"); // scan finished so nothing to resume
+              if (reporter != null) {
+                reporter.finish();
+              }
+              metrics.insertRun(DBconnection, String.join(";", roots));
               // successfully completed so commit all the inserts from the directories' walks
-              var endGoodTransaction = "COMMIT"; // all or nothing - no db COMMIT until program ends okay
+              var endGoodTransaction = "COMMIT"; // all or nothing - no db COMMIT until program ends okay (or since the last checkpoint)
               unpreparedStatement.executeUpdate(endGoodTransaction);
+              if (bulkLoadProfile) {
+                leaveBulkLoadProfile(unpreparedStatement);
+              }
               System.out.println("\n\nDesired files inserted into db.");
+              if (analyzeAfterLoad) {
+                unpreparedStatement.execute("ANALYZE");
+                System.out.println("Db analyzed.");
+              }
+              if (vacuumAfterLoad) {
+                unpreparedStatement.execute("VACUUM");
+                System.out.println("Db vacuumed.");
+              }
               } catch (Exception e) {
                 e.printStackTrace();
                 var endBadTransaction = "ROLLBACK";
                 unpreparedStatement.execute(endBadTransaction);
+                if (bulkLoadProfile) {
+                  leaveBulkLoadProfile(unpreparedStatement); // checkpoints may have committed part of the scan
+                }
               }
             }
             catch (Exception e) {
@@ -122,24 +315,158 @@ public class DirList {
         }
     }
 
+    /**
+     * The inMemoryDuplicates mode: walk all the roots keeping only compact records, then hash the
+     * files whose size matches another file and print the groups of duplicates.
+     */
+    static void findDuplicatesInMemory(TextListWriter out) {
+      var finder = new DuplicateFinder();
+      Filewalker fw = x.new Filewalker(out, null);
+      fw.duplicateFinder = finder;
+      var reporter = ProgressReporter.start(0);
+      try {
+        if (deviceScheduler) {
+          new DeviceScheduler(roots).walk(fw);
+        }
+        else {
+          for (var rootDirectory : roots) {
+            System.out.println("Start finding desired (filtered) files in " + rootDirectory + ".");
+            fw.walkRoot(rootDirectory);
+          }
+        }
+        System.out.println("\nHashing files whose size matches another file.");
+        finder.printDuplicates(out);
+        out.flush();
+        if (reporter != null) {
+          reporter.finish();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        System.out.println("\nDone.");
+      }
+    }
+
   public class Filewalker {
-    PrintWriter textDirList;
+    TextListWriter textDirList; // null if noTextDir
     Connection DBconnection;
     PreparedStatement insertStatement;
+    PreparedStatement updateStatement;
+    int batchedRows = 0; // added to the insert and update statements' batches but not yet executed
+    final FileRecordStore previousListing = new FileRecordStore(true, true); // incremental mode rows of the root being walked, found by path
+    HashMap<String, Integer> scanProgress = new HashMap<>(); // resumed scan's directories by absolute path with FILES_LISTED or DIRECTORY_FINISHED
+    static final int FILES_LISTED = 1; // the directory's own files are in the db but not all of its subdirectories
+    static final int DIRECTORY_FINISHED = 2; // the directory and all its subdirectories are in the db
+    final boolean recordProgress = checkpointSeconds > 0 && !sizeFirst && !inMemoryDuplicates; // sizeFirst stores nothing until all roots are walked
+    final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock(true); // read locked while a directory's files are stored so a checkpoint never commits part of them
+    volatile Pipeline pipeline; // when pipelineHashers
+    volatile long nextCheckpoint = System.nanoTime() + checkpointSeconds * 1_000_000_000L;
+    HashMap<String, Long> dirIds = new HashMap<>(); // normalizedDirs ids of the directories by absolute path
+    HashMap<Long, Long> dirRootIds = new HashMap<>(); // and the id of the top directory (drive) they are on
+    final FileRecordStore sizeFirstEntries = new FileRecordStore(true, false); // files listed but not yet hashed in the sizeFirst mode
+    Set<Long> changedSizes = Collections.synchronizedSet(new HashSet<>()); // incremental mode sizes of the rows inserted, updated or deleted, whose duplicate_groups are refilled
+    boolean unfinishedScanFound; // an interrupted scan committed changes at its checkpoints whose sizes aren't in changedSizes
+    final HashMap<Long, ArrayList<FileEntry>> physicalOrderBatches = new HashMap<>(); // by device, physicalOrderBatch files listed but not yet hashed
 
-    Filewalker(PrintWriter textDirList, Connection DBconnection) {
+    Filewalker(TextListWriter textDirList, Connection DBconnection) {
     this.textDirList = textDirList;
     this.DBconnection = DBconnection;
+    if (DBconnection == null) {
+      return; // inMemoryDuplicates
+    }
 
     // Insert data using a prepared statement
-    String insertSQLparameterized = "INSERT INTO files(crc, name, path, size) VALUES(?, ?, ?, ?)";
+    // the normalized file_rows table has the dir_id where the files table has the path
+    var pathColumn = filesTable.equals("file_rows") ? "dir_id" : "path";
+    String insertSQLparameterized = "INSERT INTO " + filesTable + "(crc, phash, name, " + pathColumn + ", size, modified, filekey) VALUES(?, ?, ?, ?, ?, ?, ?)";
+    String updateSQLparameterized = "UPDATE " + filesTable + " SET crc = ?, phash = ?, name = ?, " + pathColumn + " = ?, size = ?, modified = ?, filekey = ? WHERE rowid = ?";
     try  {
       insertStatement = DBconnection.prepareStatement(insertSQLparameterized);
+      updateStatement = DBconnection.prepareStatement(updateSQLparameterized);
     } catch (SQLException e) {
       e.printStackTrace();
     }
     }
 
+    FileFilter filter = file -> { // rules compiled from the filterFile
+      if (pathFilter.accept(file)) {
+        return true;
+      }
+      metrics.filteredOut.increment();
+      return false;
+    };
+    DuplicateFinder duplicateFinder; // inMemoryDuplicates mode gets the listed files instead of the db
+    volatile boolean stopWalking; // a deviceScheduler walk failed; the other devices' walks stop at their next directory or file
+
+    void checkStopped() throws IOException {
+      if (stopWalking) {
+        throw new IOException("Walk stopped since another device's walk failed");
+      }
+    }
+
+    /**
+     * The filtered listFiles of the directory, timed by a DirectoryListedEvent
+     * @return null if the directory can't be read or the walk is stopped
+     */
+    File[] listDirectory(File directory) {
+      if (stopWalking) {
+        return null;
+      }
+      var event = new DirectoryListedEvent();
+      event.begin();
+      var list = directory.listFiles(filter);
+      event.end();
+      if (event.shouldCommit()) {
+        event.path = directory.getPath();
+        event.entries = list == null ? -1 : list.length;
+        event.commit();
+      }
+      return list;
+    }
+
+    /**
+     * Walks the root with at most this many threads for the deviceScheduler: 1 is the sequential
+     * walk (nio or File as the options select); more is the walker the options select capped at
+     * this many, or the fork/join walker if they select a sequential one
+     */
+    public void walkRoot(String rootDirectory, int parallelism) throws IOException {
+      if (parallelism <= 1 || nioWalker) {
+        if (nioWalker) {
+          walkNio(rootDirectory);
+        }
+        else {
+          walk(rootDirectory);
+        }
+      }
+      else if (walkerParallelism > 0) {
+        walkParallel(rootDirectory, Math.min(walkerParallelism, parallelism));
+      }
+      else if (virtualThreadsPerRoot > 0) {
+        walkVirtual(rootDirectory, Math.min(virtualThreadsPerRoot, parallelism));
+      }
+      else {
+        walkParallel(rootDirectory, parallelism);
+      }
+    }
+
+    /**
+     * Walks the root with the walker the options select
+     */
+    public void walkRoot(String rootDirectory) throws IOException {
+      if (nioWalker) {
+        walkNio(rootDirectory); // search for files and directories with their attributes
+      }
+      else if (walkerParallelism > 0) {
+        walkParallel(rootDirectory); // search for files and directories with a work stealing pool
+      }
+      else if (virtualThreadsPerRoot > 0) {
+        walkVirtual(rootDirectory); // search for files and directories each on its own thread
+      }
+      else {
+        walk(rootDirectory); // search for files and directories
+      }
+    }
+
     /**
      * Called recursively for subdirectories
      * @param path Starting path that is searched to the end of the tree
@@ -149,96 +476,449 @@ public class DirList {
 
       File root = new File(startPath);
 
-      // Create an inline Filename Filter
-      FileFilter filter = new FileFilter() {
-        public boolean accept(File file) // or accept(File f, String name)
-        {
-          // System.out.print(file.isDirectory()?"DIR: ":file.isFile()?"FILE: ":"NONE");
-          // System.out.println(file + " <>" + file.getAbsoluteFile().toString() + "{}" +
-          // file.getAbsolutePath() + "  " + file.canRead());
-
-          return
-            (!file.isHidden())
-              &&
-            (
-              (file.isDirectory()
-                // user option to suppress any directories to list
-                &&
-                !file.getAbsoluteFile().toString().endsWith("_files") // but not the directory of a saved web page
-                &&
-                !file.getAbsoluteFile().toString().endsWith("\\AppData") // and not \AppData directories
-                &&
-                !file.getAbsoluteFile().toString().contains("\\.") // and not \. directories
-                &&
-                !file.getAbsoluteFile().toString().startsWith("C:\\Windows")
-                &&
-                !file.getAbsoluteFile().toString().startsWith("C:\\Users\\Public\\wpilib\\")
-                &&
-                !file.getAbsoluteFile().toString().startsWith("C:\\opencv\\")
-                &&
-                !file.getAbsoluteFile().toString().startsWith("C:\\Program Files")
-              ) // process all directories as requested
-            ||
-              (file.isFile()  // process selected readable files
-            //   &&
-            //   ( // ending with: 
-            //     (file.getName().length() >= 4
-            //       && 
-            //       (file.getName().substring(file.getName().length() - 4).equalsIgnoreCase(".JPG")
-            //       ||
-            //       file.getName().substring(file.getName().length() - 4).equalsIgnoreCase(".PNG"))
-            //     )
-            //     ||
-            //     (file.getName().length() >= 5
-            //       &&
-            //       file.getName().substring(file.getName().length() - 5).equalsIgnoreCase(".JPEG")
-            //     )
-            //   )
-              // user option to suppress any file types or files to list
-              && !FilenameUtils.isExtension(file.getName().toLowerCase(), // filter out unneeded files
-              "bin", "js", "lock", "dll", "class", "json", "md", "sys", "pdb", "gradle", "mk", "prefs")
-              && !file.getName().toLowerCase().contains("licen")
-              )
-          )
-            ;
-        }
-      }; // ! Create a Filename Filter
-
-
-      File[] list = root.listFiles(filter);
+      var progress = scanProgress.get(root.getAbsolutePath()); // null unless resuming
+      if (progress != null && progress == DIRECTORY_FINISHED)
+        return;
+
+      File[] list = listDirectory(root);
 
       if (list == null)
         return;
 
-      for (File file : list) {
-          // System.out.print(file.isDirectory()?"DIR: ":file.isFile()?"FILE: ":"NONE");
-          // System.out.println(file + " <>" + file.getAbsoluteFile().toString() + "{}" +
-          // file.getAbsolutePath() + "  " + file.canRead());
-        if (++progressCounter%50 == 0) System.out.print(progressCounter + "\r");
+      // the files first so the directory's files are all stored before any checkpoint in its subdirectories
+      var subdirectories = new ArrayList<File>();
+      checkpointLock.readLock().lock();
+      try {
+        for (File file : list) {
+            // System.out.print(file.isDirectory()?"DIR: ":file.isFile()?"FILE: ":"NONE");
+            // System.out.println(file + " <>" + file.getAbsoluteFile().toString() + "{}" +
+            // file.getAbsolutePath() + "  " + file.canRead());
+          countProgress();
+
+          if (file.isDirectory())
+          {
+            subdirectories.add(file);
+          }
+          else if (progress == null) // else stored before the resumed scan was interrupted
+          {
+            listFile(file);
+          }
+        }
+        recordProgress(root, FILES_LISTED);
+      } finally {
+        checkpointLock.readLock().unlock();
+      }
 
-        if (file.isDirectory())
-        {
+      for (File subdirectory : subdirectories) {
           // out.println( file.getAbsoluteFile().toString() + "<" + " recurse");
-          walk(file.getAbsoluteFile().toString()); // recursive invocation to subdirectory
+          walk(subdirectory.getAbsoluteFile().toString()); // recursive invocation to subdirectory
+      }
+      // the end of the file list for this directory
+      // recursive invocations unwind here at the end
+      recordProgress(root, DIRECTORY_FINISHED);
+      checkpointIfDue();
+    }
+
+    /**
+     * Same listing as walk but each subdirectory is a fork/join task so several directories
+     * are listed and hashed at once; idle threads steal subdirectories from busy ones.
+     * @param startPath Starting path that is searched to the end of the tree
+     * @throws IOException 
+     */
+    public void walkParallel(String startPath) throws IOException {
+      walkParallel(startPath, walkerParallelism);
+    }
+
+    public void walkParallel(String startPath, int parallelism) throws IOException {
+      var pool = new ForkJoinPool(parallelism);
+      try {
+        pool.invoke(new WalkTask(new File(startPath)));
+      } catch (UncheckedIOException e) {
+        throw e.getCause(); // same failure the sequential walk would have thrown
+      } finally {
+        pool.shutdownNow(); // after a failure the other tasks stop at their next directory or file
+        awaitStopped(pool); // so none stores a row after the caller's ROLLBACK
+      }
+    }
+
+    class WalkTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      final File directory;
+
+      WalkTask(File directory) {
+        this.directory = directory;
+      }
+
+      boolean stopped() {
+        var pool = getPool();
+        return pool != null && pool.isShutdown(); // another task failed
+      }
+
+      @Override
+      protected void compute() {
+        if (stopped())
+          return;
+        var progress = scanProgress.get(directory.getAbsolutePath()); // null unless resuming
+        if (progress != null && progress == DIRECTORY_FINISHED)
+          return;
+
+        File[] list = listDirectory(directory);
+
+        if (list == null)
+          return;
+
+        var subdirectories = new ArrayList<WalkTask>();
+        var files = new ArrayList<File>();
+        for (File file : list) {
+          countProgress();
+
+          if (file.isDirectory())
+          {
+            var subdirectory = new WalkTask(file.getAbsoluteFile());
+            subdirectory.fork(); // available to be stolen while this thread hashes the files
+            subdirectories.add(subdirectory);
+          }
+          else if (progress == null) // else stored before the resumed scan was interrupted
+          {
+            files.add(file);
+          }
         }
-        else
-        {
-          BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
-          var crc = calculateCRC32(file.toString());
-          var name = file.getName();
-          var path = file.getParent();
-          var size = attributes.size();
-          textDirList.format("%d, \"%s\", \"%s\", %d%n",
-            crc, name, path, size);
+
+        try {
+          checkpointLock.readLock().lock();
+          try {
+            for (File file : files) {
+              if (stopped())
+                return;
+              listFile(file);
+            }
+            recordProgress(directory, FILES_LISTED);
+          } finally {
+            checkpointLock.readLock().unlock();
+          }
+
+          for (var subdirectory : subdirectories) {
+            subdirectory.join();
+          }
+          if (stopped())
+            return; // not all of the subdirectories were walked
+          recordProgress(directory, DIRECTORY_FINISHED);
+          checkpointIfDue();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+
+    /**
+     * Resume the directories recorded by an interrupted scan, or forget them if not resuming
+     * @throws SQLException
+     */
+    public void loadScanProgress() throws SQLException {
+      try (Statement progressStatement = DBconnection.createStatement()) {
+        if (!resume) {
+          if (progressStatement.executeUpdate("DELETE FROM scan_progress") > 0) {
+            System.out.println("The previous scan didn't finish; starting over. Use --resume to continue it instead.");
+            unfinishedScanFound = true;
+          }
+          return;
+        }
+        try (var rows = progressStatement.executeQuery("SELECT dir, state FROM scan_progress")) {
+          while (rows.next()) {
+            scanProgress.put(rows.getString(1), rows.getInt(2));
+          }
+        }
+      }
+      if (scanProgress.isEmpty()) {
+        // walking everything again would add a second row for every file of the finished scan
+        throw new IllegalStateException("Nothing to resume; the previous scan finished or never reached a checkpoint. Run without --resume.");
+      }
+      unfinishedScanFound = true;
+      System.out.println("Resuming; " + scanProgress.size() + " directories already listed.");
+    }
+
+    /**
+     * Remember how far a directory is listed; committed with its rows at the next checkpoint
+     * @throws IOException
+     */
+    void recordProgress(File directory, int state) throws IOException {
+      if (!recordProgress) {
+        return;
+      }
+      synchronized (this) {
+        try (var progressStatement = DBconnection.prepareStatement("INSERT OR REPLACE INTO scan_progress(dir, state) VALUES(?, ?)")) {
+          progressStatement.setString(1, directory.getAbsolutePath());
+          progressStatement.setInt(2, state);
+          progressStatement.executeUpdate();
+        } catch (SQLException e) {
+          throw new IOException("Progress of " + directory + " not recorded", e);
+        }
+      }
+    }
+
+    /**
+     * Commit what is listed so far if checkpointSeconds have passed. Waits for the walker threads
+     * to finish storing the files of the directories they are in.
+     * @throws IOException
+     */
+    void checkpointIfDue() throws IOException {
+      checkStopped(); // never commit part of a failed scan
+      if (checkpointSeconds <= 0 || inMemoryDuplicates || System.nanoTime() < nextCheckpoint) {
+        return;
+      }
+      checkpointLock.writeLock().lock();
+      try {
+        if (pipeline != null) {
+          pipeline.awaitDrained(); // the files of the listed directories are all written
+        }
+        synchronized (this) {
+          if (System.nanoTime() < nextCheckpoint) {
+            return; // another walker thread just did it
+          }
+          hashInPhysicalOrder(); // the files of the listed directories are all stored
+          flush();
+          try (Statement checkpointStatement = DBconnection.createStatement()) {
+            checkpointStatement.executeUpdate("COMMIT");
+            if (bulkLoadProfile) {
+              checkpointWal(checkpointStatement, "PASSIVE"); // between the transactions
+            }
+            checkpointStatement.executeUpdate("BEGIN TRANSACTION");
+          } catch (SQLException e) {
+            throw new IOException("Checkpoint failed", e);
+          }
+          nextCheckpoint = System.nanoTime() + checkpointSeconds * 1_000_000_000L;
+        }
+      } finally {
+        checkpointLock.writeLock().unlock();
+      }
+    }
+
+    /**
+     * Same listing as walk with Files.walkFileTree. Each entry's attributes are read once (on Windows
+     * they come with the directory listing) and that one attributes object is used by the filter,
+     * the hashing and the insert. Symbolic links aren't followed.
+     * @param startPath Starting path that is searched to the end of the tree
+     * @throws IOException 
+     */
+    public void walkNio(String startPath) throws IOException {
+      Files.walkFileTree(Paths.get(startPath), new NioVisitor());
+    }
+
+    class NioVisitor extends SimpleFileVisitor<Path> {
+      // the files of each directory being walked; stored when the directory is finished so a
+      // checkpoint never commits part of a directory's files
+      final ArrayDeque<List<FileEntry>> directoryFiles = new ArrayDeque<>();
+
+      @Override
+      public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+        if (!directoryFiles.isEmpty()) { // the root isn't filtered
+          if (!pathFilter.accept(directory, attributes)) {
+            metrics.filteredOut.increment();
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          countProgress();
+        }
+        var progress = scanProgress.get(directory.toAbsolutePath().toString()); // null unless resuming
+        if (progress != null && progress == DIRECTORY_FINISHED) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        directoryFiles.push(new ArrayList<>());
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+        if (pathFilter.accept(file, attributes)) {
+          countProgress();
+          directoryFiles.peek().add(new FileEntry(file.toFile(), attributes));
+        }
+        else {
+          metrics.filteredOut.increment();
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) {
+        return FileVisitResult.CONTINUE; // unreadable, skipped the same as listFiles returning null
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+        var files = directoryFiles.pop();
+        var progress = scanProgress.get(directory.toAbsolutePath().toString());
+        checkpointLock.readLock().lock();
+        try {
+          if (progress == null) { // else stored before the resumed scan was interrupted
+            for (var entry : files) {
+              listFile(entry);
+            }
+          }
+          recordProgress(directory.toFile(), DIRECTORY_FINISHED);
+        } finally {
+          checkpointLock.readLock().unlock();
+        }
+        checkpointIfDue();
+        return FileVisitResult.CONTINUE;
+      }
+    }
+
+    /**
+     * Same listing as walk with every directory listing and every file hash on its own virtual
+     * thread, so a high latency file system has many requests outstanding at once. A semaphore of
+     * virtualThreadsPerRoot permits limits how many are doing I/O; the thread that finds a
+     * directory or file takes its permit before starting the new thread so waiting threads don't
+     * pile up.
+     * @param startPath Starting path that is searched to the end of the tree
+     * @throws IOException 
+     */
+    public void walkVirtual(String startPath) throws IOException {
+      walkVirtual(startPath, virtualThreadsPerRoot);
+    }
+
+    public void walkVirtual(String startPath, int permits) throws IOException {
+      var executor = newVirtualThreadExecutor();
+      if (executor == null) {
+        // platform threads blocked on their subdirectories would need one thread per directory
+        System.out.println("No virtual threads in this Java version; walking with " + permits + " fork/join threads instead.");
+        walkParallel(startPath, permits);
+        return;
+      }
+      var ioPermits = new Semaphore(permits);
+      var failed = new AtomicBoolean();
+      try {
+        ioPermits.acquireUninterruptibly();
+        submitVirtual(executor, failed, () -> listDirectoryVirtual(new File(startPath), ioPermits, executor, failed)).get();
+      } catch (InterruptedException e) {
+        failed.set(true);
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted walking " + startPath, e);
+      } catch (ExecutionException e) {
+        var cause = e.getCause();
+        while (cause instanceof ExecutionException && cause.getCause() != null) {
+          cause = cause.getCause(); // from a subdirectory's thread
+        }
+        throw cause instanceof IOException ioException ? ioException : new IOException(cause);
+      } finally {
+        executor.shutdown();
+        awaitStopped(executor); // after a failure the other threads stop at their next directory or file
+      }
+    }
+
+    /**
+     * Submit a directory or file of the virtual thread walk; its failure stops the others
+     */
+    Future<Void> submitVirtual(ExecutorService executor, AtomicBoolean failed, Callable<Void> task) {
+      return executor.submit(() -> {
+        try {
+          return task.call();
+        } catch (Throwable e) {
+          failed.set(true);
+          throw e;
+        }
+      });
+    }
+
+    /**
+     * Wait for all of them, even after one failed, so none is still storing when the failure is thrown
+     */
+    static void getAll(List<Future<Void>> futures) throws Exception {
+      ExecutionException failure = null;
+      for (var future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    /**
+     * One directory on its own thread which starts with a permit for the listing
+     */
+    Void listDirectoryVirtual(File directory, Semaphore ioPermits, ExecutorService executor, AtomicBoolean failed) throws Exception {
+      Integer progress;
+      File[] list;
+      try {
+        if (failed.get())
+          return null;
+        progress = scanProgress.get(directory.getAbsolutePath()); // null unless resuming
+        if (progress != null && progress == DIRECTORY_FINISHED)
+          return null;
+        list = listDirectory(directory);
+      } finally {
+        ioPermits.release();
+      }
+
+      if (list == null)
+        return null;
+
+      var subdirectories = new ArrayList<Future<Void>>();
+      var filesToList = new ArrayList<File>();
+      for (File file : list) {
+        countProgress();
+
+        if (failed.get()) {
+          break;
+        }
+        if (file.isDirectory()) {
+          ioPermits.acquire();
+          subdirectories.add(submitVirtual(executor, failed, () -> listDirectoryVirtual(file.getAbsoluteFile(), ioPermits, executor, failed)));
+        }
+        else if (progress == null) { // else stored before the resumed scan was interrupted
+          filesToList.add(file);
+        }
+      }
+
+      var files = new ArrayList<Future<Void>>();
+      checkpointLock.readLock().lock(); // held by this thread until all its files are stored
+      try {
+        for (File file : filesToList) {
+          ioPermits.acquire();
+          files.add(submitVirtual(executor, failed, () -> {
             try {
-              insertStatement.setLong(1, crc);
-              insertStatement.setString(2, name);
-              insertStatement.setString(3, path);
-              insertStatement.setLong(4, size);
-              insertStatement.executeUpdate();
-            } catch (SQLException e) {
-              e.printStackTrace();
+              if (!failed.get()) {
+                listFile(file);
+              }
+            } finally {
+              ioPermits.release();
             }
+            return null;
+          }));
+        }
+        getAll(files);
+        if (failed.get())
+          return null; // not all of the files were stored
+        recordProgress(directory, FILES_LISTED);
+      } finally {
+        checkpointLock.readLock().unlock();
+      }
+
+      getAll(subdirectories);
+      if (failed.get())
+        return null;
+      recordProgress(directory, DIRECTORY_FINISHED);
+      checkpointIfDue();
+      return null;
+    }
+
+    void countProgress() {
+      metrics.entriesListed.increment(); // printed by the ProgressReporter
+    }
+
+    /**
+     * Hash one file and add it to the text list and the db
+     * @param file a file accepted by the filter
+     * @throws IOException
+     */
+    void listFile(File file) throws IOException {
+          BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+          listFile(new FileEntry(file, attributes));
           //   System.out.println("File size: " + attributes.size() + " bytes");
           //   System.out.println("Creation time: " + attributes.creationTime());
           //   System.out.println("Last access time: " + attributes.lastAccessTime());
@@ -247,45 +927,2601 @@ public class DirList {
           //   System.out.println("Is regular file: " + attributes.isRegularFile());
           //   System.out.println("Is symbolic link: " + attributes.isSymbolicLink());
           //   System.out.println("Is other: " + attributes.isOther());
+    }
+
+    /**
+     * Hash one file and add it to the text list and the db
+     * @param entry a file accepted by the filter with the attributes already read
+     * @throws IOException
+     */
+    void listFile(FileEntry entry) throws IOException {
+          checkStopped();
+          var file = entry.file;
+          if (duplicateFinder != null) {
+            duplicateFinder.add(file, entry.size); // hashed after the walk only if the size isn't unique
+            return;
+          }
+          if (filesTable.equals("file_rows")) {
+            try {
+              entry.dirId = dirId(file.getAbsoluteFile().getParentFile());
+            } catch (SQLException e) {
+              throw new IOException("Directory of " + file + " not added to the db", e);
+            }
+          }
+          if (incremental && unchangedSincePreviousListing(entry)) {
+            return;
+          }
+          if (sizeFirst) {
+            sizeFirstEntries.add(entry); // hash later only if the size isn't unique
+            return;
+          }
+          if (pipeline != null) {
+            pipeline.submit(entry); // hashed and stored by the pipeline's threads
+            return;
+          }
+          if (physicalOrderBatch > 0) {
+            addToPhysicalOrderBatch(entry);
+            return;
+          }
+          entry.crc = calculateHash(file.toString());
+          store(entry);
+    }
+
+    /**
+     * Adds the file to its device's batch; the thread that fills a batch takes it and hashes it
+     * while the other walker threads start the next one
+     */
+    void addToPhysicalOrderBatch(FileEntry entry) throws IOException {
+      long device = FileEntry.fileKeyField(entry.fileKey, "dev"); // -1 for all the files without a fileKey
+      ArrayList<FileEntry> full = null;
+      synchronized (physicalOrderBatches) {
+        var batch = physicalOrderBatches.computeIfAbsent(device, d -> new ArrayList<>());
+        batch.add(entry);
+        if (batch.size() >= physicalOrderBatch) {
+          full = physicalOrderBatches.remove(device);
         }
       }
-      // the end of the file list for this directory
-      // recursive invocations unwind here at the end
+      if (full != null) {
+        hashInPhysicalOrder(full);
+      }
     }
-  }
 
-  public static long calculateCRC32(String filePath) throws IOException {
-    CRC32 crc32 = new CRC32();
-    byte[] buffer = new byte[8192*8]; // Use a buffer for efficient reading
-    int bytesRead;
+    /**
+     * Hash and store what is left in all the devices' batches
+     */
+    void hashInPhysicalOrder() throws IOException {
+      List<ArrayList<FileEntry>> batches;
+      synchronized (physicalOrderBatches) {
+        batches = new ArrayList<>(physicalOrderBatches.values());
+        physicalOrderBatches.clear();
+      }
+      for (var batch : batches) {
+        hashInPhysicalOrder(batch);
+      }
+    }
 
-    try (FileInputStream fis = new FileInputStream(filePath)) {
-        while ((bytesRead = fis.read(buffer)) != -1) {
-            crc32.update(buffer, 0, bytesRead);
-        }
-    } catch(Exception e) {
-      System.out.println(e.getMessage().replace("\\u", "\\\\u").replace("\\U", "\\\\U")); // if output is used elsewhere, get rid of invalid unicode error
-      crc32.reset(); // any caught errors return a 0 crc; usually it's access denied at the open which has crc = 0 initially anyway
-              // This makes the 0 crc look a little odd as several very different and different sized files get the same 0 crc.
+    /**
+     * Hash and store the batched files by inode. File systems mostly allocate a file's blocks near
+     * its inode, so this order reads a spinning disk mostly forward instead of seeking back and
+     * forth in the listing's order. Files without a fileKey (Windows) keep the listing's order.
+     * Only store holds the Filewalker's monitor so other threads hash their own batches meanwhile.
+     */
+    void hashInPhysicalOrder(List<FileEntry> batch) throws IOException {
+      batch.sort(PHYSICAL_ORDER);
+      for (var entry : batch) {
+        entry.crc = calculateHash(entry.file.toString());
+        store(entry);
+      }
     }
 
-    return crc32.getValue();
-  }
-}
-/*
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import org.apache.commons.io.FilenameUtils;
+    public void startPipeline() {
+      pipeline = new Pipeline();
+    }
 
-public class FilenameMethods {
+    public void finishPipeline() throws IOException {
+      pipeline.finish();
+      pipeline = null;
+    }
 
-    public static void main(String[] args) throws IOException {
-        File file = new File("/path/to/my/file.txt");
-        Path path = Paths.get("/path/to/my/file.txt");
+    /**
+     * The walk hands the files to a pool of hashing threads which hand them to one thread writing
+     * the db and text list, so listing, reading and writing overlap. The bounded queues make a
+     * faster stage wait for a slower one. Each stage's busy and waiting times are printed at the end.
+     */
+    class Pipeline {
+      final ArrayBlockingQueue<FileEntry> toHash = new ArrayBlockingQueue<>(pipelineQueueSize);
+      final ArrayBlockingQueue<FileEntry> toStore = new ArrayBlockingQueue<>(pipelineQueueSize);
+      final FileEntry end = new FileEntry(new File(""), 0); // after the last file
+      final List<Thread> hashers = new ArrayList<>();
+      final Thread writer;
+      final AtomicLong inFlight = new AtomicLong(); // submitted but not yet stored
+      final long started = System.nanoTime();
+      final AtomicLong walkWaiting = new AtomicLong();
+      final AtomicLong hashBusy = new AtomicLong();
+      final AtomicLong hashWaiting = new AtomicLong();
+      final AtomicLong writeBusy = new AtomicLong();
+      final AtomicLong writeWaiting = new AtomicLong();
+      volatile Throwable failure;
 
-        System.out.println("File name (File): " + file.getName());
+      Pipeline() {
+        for (int i = 0; i < pipelineHashers; i++) {
+          var hasher = new Thread(this::hash, "hasher-" + i);
+          hashers.add(hasher);
+          hasher.start();
+        }
+        writer = new Thread(this::write, "db-writer");
+        writer.start();
+      }
+
+      void submit(FileEntry entry) throws IOException {
+        stopOnFailure();
+        inFlight.incrementAndGet();
+        var waitStart = System.nanoTime();
+        try {
+          put(toHash, entry);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for the hashers", e);
+        } catch (IOException e) {
+          stopOnFailure();
+        }
+        walkWaiting.addAndGet(System.nanoTime() - waitStart);
+      }
+
+      void hash() {
+        try {
+          while (true) {
+            checkFailure(); // stop as soon as another stage failed
+            var waitStart = System.nanoTime();
+            var entry = take(toHash);
+            var hashStart = System.nanoTime();
+            hashWaiting.addAndGet(hashStart - waitStart);
+            if (entry == end) {
+              return;
+            }
+            entry.crc = calculateHash(entry.file.toString());
+            var putStart = System.nanoTime();
+            hashBusy.addAndGet(putStart - hashStart);
+            put(toStore, entry);
+            hashWaiting.addAndGet(System.nanoTime() - putStart);
+          }
+        } catch (Throwable e) {
+          fail(e);
+        }
+      }
+
+      void write() {
+        try {
+          while (true) {
+            checkFailure();
+            var waitStart = System.nanoTime();
+            var entry = take(toStore);
+            var storeStart = System.nanoTime();
+            writeWaiting.addAndGet(storeStart - waitStart);
+            if (entry == end) {
+              return;
+            }
+            store(entry);
+            writeBusy.addAndGet(System.nanoTime() - storeStart);
+            if (inFlight.decrementAndGet() == 0) {
+              synchronized (inFlight) {
+                inFlight.notifyAll();
+              }
+            }
+          }
+        } catch (Throwable e) {
+          fail(e);
+        }
+      }
+
+      /**
+       * Keeps the first failure (the other stages then stop with checkFailure's) and wakes
+       * awaitDrained
+       */
+      void fail(Throwable e) {
+        synchronized (inFlight) {
+          if (failure == null) {
+            failure = e;
+          }
+          inFlight.notifyAll();
+        }
+      }
+
+      /**
+       * put that gives up once a stage has failed, since the stage that would take the entry
+       * may be gone
+       */
+      void put(ArrayBlockingQueue<FileEntry> queue, FileEntry entry) throws InterruptedException, IOException {
+        while (!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+          checkFailure();
+        }
+      }
+
+      /**
+       * take that gives up once a stage has failed, since the stage that would put the next
+       * entry may be gone
+       */
+      FileEntry take(ArrayBlockingQueue<FileEntry> queue) throws InterruptedException, IOException {
+        FileEntry entry;
+        while ((entry = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+          checkFailure();
+        }
+        return entry;
+      }
+
+      void awaitDrained() throws IOException {
+        synchronized (inFlight) {
+          while (inFlight.get() > 0 && failure == null) {
+            try {
+              inFlight.wait(1000);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new IOException("Interrupted waiting for the pipeline", e);
+            }
+          }
+        }
+        stopOnFailure();
+      }
+
+      void finish() throws IOException {
+        try {
+          for (int i = 0; i < hashers.size(); i++) {
+            put(toHash, end);
+          }
+          for (var hasher : hashers) {
+            hasher.join();
+          }
+          checkFailure(); // the writer is stopping if a hasher failed
+          put(toStore, end);
+          writer.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for the pipeline", e);
+        } catch (IOException e) {
+          stopOnFailure();
+        }
+        stopOnFailure();
+
+        var elapsed = System.nanoTime() - started;
+        System.out.format("%nPipeline %.1f s: walk waited %.1f s; %d hashers busy %.1f s, waited %.1f s; writer busy %.1f s, waited %.1f s%n",
+          elapsed / 1e9, walkWaiting.get() / 1e9,
+          hashers.size(), hashBusy.get() / 1e9, hashWaiting.get() / 1e9,
+          writeBusy.get() / 1e9, writeWaiting.get() / 1e9);
+      }
+
+      void checkFailure() throws IOException {
+        if (failure != null) {
+          throw new IOException("Pipeline stage failed", failure);
+        }
+      }
+
+      /**
+       * checkFailure for the walk's side: after a failure first waits for the stage threads to stop
+       * (each within a queue wait) so none is still storing when the db is closed
+       */
+      void stopOnFailure() throws IOException {
+        if (failure == null) {
+          return;
+        }
+        try {
+          for (var hasher : hashers) {
+            hasher.join();
+          }
+          writer.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        checkFailure();
+      }
+    }
+
+    /**
+     * normalizedDirs; the id of a directory's row in dirs, added with any missing parents if new.
+     * A top directory (drive or file system root) has no parent and is its own root.
+     * @param directory absolute path
+     * @throws SQLException
+     */
+    synchronized long dirId(File directory) throws SQLException {
+      var id = dirIds.get(directory.getPath());
+      if (id != null) {
+        return id;
+      }
+
+      var parent = directory.getParentFile();
+      Long parentId = parent == null ? null : dirId(parent);
+      var name = parent == null ? directory.getPath() : directory.getName();
+
+      try (var selectStatement = DBconnection.prepareStatement("SELECT id, root FROM dirs WHERE parent_id IS ? AND name = ?")) {
+        selectStatement.setObject(1, parentId);
+        selectStatement.setString(2, name);
+        try (var row = selectStatement.executeQuery()) {
+          if (row.next()) {
+            id = row.getLong(1);
+            dirIds.put(directory.getPath(), id);
+            dirRootIds.put(id, row.getLong(2));
+            return id;
+          }
+        }
+      }
+
+      try (var insertDirStatement = DBconnection.prepareStatement("INSERT INTO dirs(parent_id, name, root) VALUES(?, ?, ?)");
+           Statement idStatement = DBconnection.createStatement()) {
+        insertDirStatement.setObject(1, parentId);
+        insertDirStatement.setString(2, name);
+        insertDirStatement.setObject(3, parentId == null ? null : dirRootIds.get(parentId));
+        insertDirStatement.executeUpdate();
+        try (var row = idStatement.executeQuery("SELECT last_insert_rowid()")) {
+          row.next();
+          id = row.getLong(1);
+        }
+        if (parentId == null) {
+          idStatement.executeUpdate("UPDATE dirs SET root = id WHERE id = " + id);
+        }
+      }
+      dirIds.put(directory.getPath(), id);
+      dirRootIds.put(id, parentId == null ? id : dirRootIds.get(parentId));
+      return id;
+    }
+
+    /**
+     * Incremental mode; remember the db rows of the files previously listed under this root
+     * @param startPath the root about to be walked
+     * @throws SQLException
+     */
+    public void loadPreviousListing(String startPath) throws SQLException {
+      previousListing.clear();
+      var root = new File(startPath).getAbsoluteFile();
+      var subdirectoryPrefix = root.getPath().endsWith(File.separator) ? root.getPath() : root.getPath() + File.separator;
+      var duplicateRows = new ArrayList<Long>(); // same file listed more than once by earlier non-incremental runs
+
+      try (var selectStatement = DBconnection.prepareStatement(
+          "SELECT rowid, crc, phash, name, path, size, modified, filekey FROM files WHERE path = ? OR path = ? OR substr(path, 1, ?) = ?")) {
+        selectStatement.setString(1, startPath); // files directly in the root keep the root as given
+        selectStatement.setString(2, root.getPath());
+        selectStatement.setInt(3, subdirectoryPrefix.length());
+        selectStatement.setString(4, subdirectoryPrefix);
+        try (var rows = selectStatement.executeQuery()) {
+          while (rows.next()) {
+            var entry = new FileEntry(new File(rows.getString(5), rows.getString(4)), rows.getLong(6));
+            entry.rowid = rows.getLong(1);
+            entry.crc = getNullableLong(rows, 2);
+            entry.phash = getNullableLong(rows, 3);
+            entry.modified = getNullableLong(rows, 7);
+            entry.fileKey = rows.getString(8);
+            int duplicate = previousListing.find(entry.file);
+            if (duplicate != -1) {
+              duplicateRows.add(previousListing.rowids[duplicate]);
+              changedSizes.add(previousListing.sizes[duplicate]);
+              previousListing.set(duplicate, entry);
+            }
+            else {
+              previousListing.add(entry);
+            }
+          }
+        }
+      }
+      System.out.println(previousListing.count + " files previously listed.");
+
+      deleteRows(duplicateRows);
+    }
+
+    /**
+     * Incremental mode; find the file in the previous listing. A changed file takes over the row of
+     * its previous listing so the row is updated instead of a new one inserted.
+     * @return true if the file is listed with the same size, modified time and file key
+     */
+    boolean unchangedSincePreviousListing(FileEntry entry) {
+      int previous = previousListing.find(entry.file);
+      if (previous == -1) {
+        return false; // new file
+      }
+      previousListing.setFlag(previous, FileRecordStore.SEEN);
+      if (previousListing.sizes[previous] == entry.size && Objects.equals(previousListing.modified(previous), entry.modified)
+          && Objects.equals(previousListing.fileKey(previous), entry.fileKey)) {
+        return true;
+      }
+      entry.rowid = previousListing.rowids[previous];
+      changedSizes.add(previousListing.sizes[previous]); // store adds the new size
+      return false;
+    }
+
+    /**
+     * Incremental mode; after a root is walked delete the rows of files not found
+     * @throws SQLException
+     */
+    public void deleteDisappeared() throws SQLException {
+      var disappearedRows = new ArrayList<Long>();
+      var resumedDirs = new boolean[previousListing.dirPaths.size()]; // listed before a resumed scan's interruption so their files weren't looked at again
+      for (int dir = 0; dir < resumedDirs.length; dir++) {
+        resumedDirs[dir] = scanProgress.containsKey(new File(previousListing.dirPaths.get(dir)).getAbsolutePath());
+      }
+      for (int previous = 0; previous < previousListing.count; previous++) {
+        if (!previousListing.hasFlag(previous, FileRecordStore.SEEN) && !resumedDirs[previousListing.dirs[previous]]) {
+          disappearedRows.add(previousListing.rowids[previous]);
+          changedSizes.add(previousListing.sizes[previous]);
+        }
+      }
+      System.out.println("\n" + disappearedRows.size() + " files no longer found.");
+      deleteRows(disappearedRows);
+      previousListing.clear();
+    }
+
+    void deleteRows(List<Long> rowids) throws SQLException {
+      try (var deleteStatement = DBconnection.prepareStatement("DELETE FROM " + filesTable + " WHERE rowid = ?")) {
+        for (var rowid : rowids) {
+          deleteStatement.setLong(1, rowid);
+          deleteStatement.addBatch();
+        }
+        deleteStatement.executeBatch();
+      }
+    }
+
+    /**
+     * Second phase of the sizeFirst mode. A file with a size no other file has can't be a duplicate
+     * so only files in size groups of more than one are read and hashed.
+     * With partialHashSample the same size files are first told apart by a hash of their head and
+     * tail and only those still matching are read completely.
+     * Rows already in the db count too so a kept base db still finds duplicates and any of its
+     * unhashed rows that now have a same size partner are hashed and updated.
+     * @throws IOException
+     * @throws SQLException
+     */
+    public void storeSizeCollisions() throws IOException, SQLException {
+      var records = sizeFirstEntries;
+      int listed = records.count; // the db rows of a listed size are added after the listed files
+      var listedSizes = Arrays.copyOf(records.sizes, listed);
+      Arrays.sort(listedSizes);
+      var relistedRows = new long[listed]; // incremental mode changed files; their db rows are out of date
+      int relisted = 0;
+      for (int record = 0; record < listed; record++) {
+        if (records.rowids[record] != -1) {
+          relistedRows[relisted++] = records.rowids[record];
+        }
+      }
+      relistedRows = Arrays.copyOf(relistedRows, relisted);
+      Arrays.sort(relistedRows);
+
+      try (Statement sizesStatement = DBconnection.createStatement();
+           var sizes = sizesStatement.executeQuery("SELECT rowid, crc, phash, name, path, size FROM files")) {
+        while (sizes.next()) {
+          var size = sizes.getLong(6);
+          if (Arrays.binarySearch(relistedRows, sizes.getLong(1)) < 0 && Arrays.binarySearch(listedSizes, size) >= 0) {
+            var entry = new FileEntry(new File(sizes.getString(5), sizes.getString(4)), size);
+            entry.rowid = sizes.getLong(1);
+            entry.crc = getNullableLong(sizes, 2);
+            entry.phash = getNullableLong(sizes, 3);
+            records.add(entry);
+          }
+        }
+      }
+
+      var sharedSizes = DuplicateFinder.sharedSizes(records.sizes, records.count);
+      var candidates = new int[records.count]; // members of size groups with more than one file
+      int candidateCount = 0;
+      for (int record = 0; record < records.count; record++) {
+        if (Arrays.binarySearch(sharedSizes, records.sizes[record]) >= 0) {
+          candidates[candidateCount++] = record;
+        }
+      }
+      candidates = Arrays.copyOf(candidates, candidateCount);
+
+      if (partialHashSample > 0) {
+        // a group with a row hashed before there were phashes (its drive may now be offline) isn't
+        // prefiltered; its new files are hashed completely to be compared with that crc
+        var unprefilteredSizes = new HashSet<Long>();
+        for (int record : candidates) {
+          if (records.crc(record) != null && records.phash(record) == null) {
+            unprefilteredSizes.add(records.sizes[record]);
+          }
+        }
+        var partialCounts = new HashMap<List<Long>, Integer>(); // size and partial hash
+        for (int record : candidates) {
+          var size = records.sizes[record];
+          if (unprefilteredSizes.contains(size)) {
+            continue;
+          }
+          if (records.phash(record) == null) {
+            try {
+              records.setPhash(record, partialHashFile(records.path(record), size, partialHashSample));
+              records.setFlag(record, FileRecordStore.REHASHED);
+            } catch (Exception e) {
+              reportHashError(e); // no phash stored; the file can't be compared
+              continue;
+            }
+          }
+          partialCounts.merge(List.of(size, records.phash(record)), 1, Integer::sum);
+        }
+        candidateCount = 0;
+        for (int record : candidates) {
+          var size = records.sizes[record];
+          var phash = records.phash(record);
+          if (unprefilteredSizes.contains(size) || phash != null && partialCounts.get(List.of(size, phash)) > 1) { // otherwise head or tail differs from all the others
+            candidates[candidateCount++] = record;
+          }
+        }
+        candidates = Arrays.copyOf(candidates, candidateCount);
+      }
+
+      if (physicalOrderBatch > 0) {
+        candidates = records.physicalOrder(candidates); // db rows have no fileKey so they stay in front
+      }
+      for (int record : candidates) {
+        if (records.crc(record) == null) {
+          try {
+            records.setCrc(record, hashFile(records.path(record)));
+            records.setFlag(record, FileRecordStore.REHASHED);
+          } catch (Exception e) {
+            reportHashError(e);
+            if (record < listed) {
+              records.setCrc(record, 0L); // a listed file gets the 0 of calculateHash; a db row is left as it was
+            }
+          }
+        }
+      }
+
+      try (var hashUpdateStatement = DBconnection.prepareStatement("UPDATE " + filesTable + " SET crc = ?, phash = ? WHERE rowid = ?")) {
+        for (int record = listed; record < records.count; record++) {
+          if (records.hasFlag(record, FileRecordStore.REHASHED)) {
+            changedSizes.add(records.sizes[record]);
+            setNullableLong(hashUpdateStatement, 1, records.crc(record));
+            setNullableLong(hashUpdateStatement, 2, records.phash(record));
+            hashUpdateStatement.setLong(3, records.rowids[record]);
+            hashUpdateStatement.addBatch();
+          }
+        }
+        hashUpdateStatement.executeBatch();
+      }
+
+      for (int record = 0; record < listed; record++) {
+        var entry = records.entry(record);
+        if (filesTable.equals("file_rows")) {
+          entry.dirId = dirId(entry.file.getAbsoluteFile().getParentFile()); // known since the walk
+        }
+        store(entry);
+      }
+      records.clear();
+    }
+
+    /**
+     * Write one row, or update the row of a changed file in the incremental mode, in batches of insertBatchSize;
+     * synchronized since the one db connection is shared by the walker threads
+     * @param entry crc and phash are null if the file wasn't hashed
+     */
+    synchronized void store(FileEntry entry) {
+          var name = entry.file.getName();
+          var path = entry.file.getParent();
+          if (textDirList != null) {
+            textDirList.row(entry.crc, name, path, entry.size);
+          }
+            try {
+              var statement = entry.rowid == -1 ? insertStatement : updateStatement;
+              setNullableLong(statement, 1, entry.crc);
+              setNullableLong(statement, 2, entry.phash);
+              statement.setString(3, name);
+              if (filesTable.equals("file_rows")) {
+                statement.setLong(4, entry.dirId);
+              }
+              else {
+                statement.setString(4, path);
+              }
+              statement.setLong(5, entry.size);
+              setNullableLong(statement, 6, entry.modified);
+              statement.setString(7, entry.fileKey);
+              if (entry.rowid != -1) {
+                statement.setLong(8, entry.rowid);
+              }
+              statement.addBatch();
+              metrics.rowsStored.increment();
+              if (incremental) {
+                changedSizes.add(entry.size);
+              }
+            } catch (SQLException e) {
+              metrics.errors.increment();
+              e.printStackTrace();
+            }
+            if (++batchedRows >= insertBatchSize) {
+              flush();
+            }
+    }
+
+    /**
+     * Execute the batched inserts and updates
+     */
+    public synchronized void flush() {
+      var event = new InsertBatchEvent();
+      event.begin();
+      long start = System.nanoTime();
+      try {
+        insertStatement.executeBatch();
+        updateStatement.executeBatch();
+      } catch (SQLException e) {
+        metrics.errors.increment();
+        e.printStackTrace();
+      }
+      if (batchedRows > 0) {
+        metrics.insertLatency.record(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+          event.table = filesTable;
+          event.rows = batchedRows;
+          event.commit();
+        }
+      }
+      batchedRows = 0;
+    }
+  }
+
+  /**
+   * The text list written on its own thread, or with sortTextBy, sorted by a TextListSorter when
+   * it's closed. Rows are put straight into a big reused char buffer
+   * (no String.format, boxing or temporary strings) and full buffers are handed to the writer
+   * thread, so the walk only waits if the disk falls two buffers behind. Names and paths are
+   * quoted CSV style: a " in them is doubled.
+   */
+  static class TextListWriter implements AutoCloseable {
+    static final int BUFFER_CHARS = 1024*1024;
+    static final String LINE_SEPARATOR = System.lineSeparator();
+    static final CharBuffer FLUSH = CharBuffer.allocate(0); // markers in the filled queue
+    static final CharBuffer CLOSE = CharBuffer.allocate(0);
+    static final CharBuffer SPILL = CharBuffer.allocate(0); // a run in toSpill to sort and spill
+
+    final Writer out;
+    final ArrayBlockingQueue<CharBuffer> filled = new ArrayBlockingQueue<>(4);
+    final ArrayBlockingQueue<CharBuffer> empty = new ArrayBlockingQueue<>(3);
+    final Semaphore flushed = new Semaphore(0);
+    final Thread writerThread;
+    final char[] digits = new char[20];
+    final TextListSorter sorter; // null for the walk's order
+    final ArrayBlockingQueue<ArrayList<TextListSorter.Row>> toSpill = new ArrayBlockingQueue<>(1); // sorted and spilled on the writer thread, not the walk's
+    CharBuffer buffer = CharBuffer.allocate(BUFFER_CHARS); // being filled
+    volatile IOException failure;
+
+    /**
+     * @param sortBy sortTextBy
+     */
+    TextListWriter(Writer out, String sortBy) {
+      this.out = out;
+      sorter = sortBy.isEmpty() ? null : new TextListSorter(sortBy);
+      empty.add(CharBuffer.allocate(BUFFER_CHARS));
+      empty.add(CharBuffer.allocate(BUFFER_CHARS));
+      writerThread = new Thread(this::writeBuffers, "text list");
+      writerThread.setDaemon(true);
+      writerThread.start();
+    }
+
+    void writeBuffers() {
+      try {
+        while (true) {
+          var chars = filled.take();
+          if (chars == CLOSE) {
+            return;
+          }
+          try {
+            if (chars == FLUSH) {
+              out.flush();
+              flushed.release();
+              continue;
+            }
+            if (chars == SPILL) {
+              var run = toSpill.take();
+              if (failure == null) {
+                sorter.spill(run);
+              }
+              continue;
+            }
+            if (failure == null) {
+              out.write(chars.array(), 0, chars.position());
+            }
+          } catch (IOException e) {
+            e.printStackTrace();
+            failure = e; // the rest is thrown away so the walk isn't stopped by the text list
+          }
+          chars.clear();
+          empty.put(chars);
+        }
+      } catch (InterruptedException e) {
+        // only by close
+      }
+    }
+
+    /**
+     * One row: crc (empty if not hashed), "name", "path", size
+     */
+    synchronized void row(Long crc, String name, String path, long size) {
+      row(crc != null, crc == null ? 0 : crc, name, path, size);
+    }
+
+    synchronized void row(boolean hashed, long crc, String name, String path, long size) {
+      if (sorter != null) {
+        if (failure != null) {
+          return; // the sorted list is lost already
+        }
+        var run = sorter.add(new TextListSorter.Row(hashed, crc, name, path, size)); // written when closed
+        if (run != null) {
+          try {
+            toSpill.put(run);
+            filled.put(SPILL);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted writing the text list", e);
+          }
+        }
+        return;
+      }
+      putRow(hashed, crc, name, path, size);
+    }
+
+    void putRow(boolean hashed, long crc, String name, String path, long size) {
+      makeRoom(2 * (name.length() + path.length()) + 64); // every char a doubled quote at worst
+      if (hashed) {
+        put(crc);
+      }
+      buffer.put(", \"");
+      putQuoted(name);
+      buffer.put("\", \"");
+      putQuoted(path);
+      buffer.put("\", ");
+      put(size);
+      buffer.put(LINE_SEPARATOR);
+    }
+
+    /**
+     * Any other text and a line separator
+     */
+    synchronized void line(String text) {
+      makeRoom(text.length() + LINE_SEPARATOR.length());
+      buffer.put(text).put(LINE_SEPARATOR);
+    }
+
+    void put(long value) {
+      if (value < 0) {
+        buffer.put('-');
+      }
+      int start = digits.length;
+      do {
+        digits[--start] = (char)('0' + Math.abs(value % 10)); // abs of the remainder so Long.MIN_VALUE works
+        value /= 10;
+      } while (value != 0);
+      buffer.put(digits, start, digits.length - start);
+    }
+
+    void putQuoted(String text) {
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c == '"') {
+          buffer.put('"');
+        }
+        buffer.put(c);
+      }
+    }
+
+    void makeRoom(int chars) {
+      if (buffer.remaining() < chars) {
+        handOff();
+        if (buffer.capacity() < chars) {
+          buffer = CharBuffer.allocate(chars); // a line longer than a buffer (not returned to the pool)
+        }
+      }
+    }
+
+    void handOff() {
+      if (buffer.position() == 0) {
+        return;
+      }
+      try {
+        filled.put(buffer);
+        buffer = empty.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted writing the text list", e);
+      }
+    }
+
+    /**
+     * Returns when everything given so far is written to the Writer and it's flushed
+     */
+    synchronized void flush() throws IOException {
+      handOff();
+      try {
+        filled.put(FLUSH);
+        flushed.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted flushing the text list");
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      try {
+        if (sorter != null) {
+          flush(); // the runs all spilled
+          sorter.mergeInto(this);
+        }
+        flush();
+      } finally {
+        try {
+          filled.put(CLOSE);
+          writerThread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * The sortTextBy mode of the TextListWriter: rows are kept until sortRunRows of them, sorted and
+   * spilled as a run to a temp file by the writer's thread; at the end the runs (and the rows still held) are merged into
+   * the text list, so the whole list is never in memory and the disk is read once more, not twice
+   * as with an OS sort afterwards.
+   */
+  static class TextListSorter {
+    record Row(boolean hashed, long crc, String name, String path, long size) {}
+
+    final Comparator<Row> order;
+    ArrayList<Row> rows = new ArrayList<>(); // filled by the walk
+    final ArrayList<File> runs = new ArrayList<>(); // spilled by the writer's thread
+
+    TextListSorter(String key) {
+      Comparator<Row> byHash = Comparator.comparing(Row::hashed).thenComparingLong(Row::crc); // unhashed first
+      Comparator<Row> byPath = Comparator.comparing(Row::path).thenComparing(Row::name);
+      order = switch (key) { // the rest of the row breaks ties so the merge order is the same as one big sort
+        case "crc" -> byHash.thenComparingLong(Row::size).thenComparing(byPath);
+        case "size" -> Comparator.comparingLong(Row::size).thenComparing(byPath).thenComparing(byHash);
+        case "path" -> byPath.thenComparingLong(Row::size).thenComparing(byHash);
+        case "name" -> Comparator.comparing(Row::name).thenComparing(Row::path).thenComparingLong(Row::size).thenComparing(byHash);
+        default -> throw new IllegalArgumentException("Unknown sortTextBy " + key + "; crc, size, path, name or empty for no sort");
+      };
+    }
+
+    /**
+     * @return the rows to spill once there are sortRunRows of them, otherwise null
+     */
+    ArrayList<Row> add(Row row) {
+      rows.add(row);
+      if (rows.size() < sortRunRows) {
+        return null;
+      }
+      var full = rows;
+      rows = new ArrayList<>();
+      return full;
+    }
+
+    void spill(ArrayList<Row> rows) throws IOException {
+      rows.sort(order);
+      var run = File.createTempFile("dirlist-sort", ".run");
+      run.deleteOnExit();
+      try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+        for (var row : rows) {
+          out.writeBoolean(row.hashed());
+          out.writeLong(row.crc());
+          writeString(out, row.name());
+          writeString(out, row.path());
+          out.writeLong(row.size());
+        }
+      }
+      runs.add(run);
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+      var bytes = text.getBytes(StandardCharsets.UTF_8); // writeUTF is limited to 64K bytes
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+      var bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One run being merged, positioned at its smallest row not yet written
+     */
+    static class Run {
+      final DataInputStream in;
+      final Iterator<Row> held; // the rows never spilled
+      Row row;
+
+      Run(DataInputStream in) {
+        this.in = in;
+        this.held = null;
+      }
+
+      Run(Iterator<Row> held) {
+        this.in = null;
+        this.held = held;
+      }
+
+      boolean next() throws IOException {
+        if (held != null) {
+          row = held.hasNext() ? held.next() : null;
+          return row != null;
+        }
+        try {
+          row = new Row(in.readBoolean(), in.readLong(), readString(in), readString(in), in.readLong());
+          return true;
+        } catch (EOFException e) {
+          row = null;
+          return false;
+        }
+      }
+    }
+
+    /**
+     * k-way merge of the runs into the writer
+     */
+    void mergeInto(TextListWriter writer) throws IOException {
+      rows.sort(order);
+      var merging = new PriorityQueue<Run>((a, b) -> order.compare(a.row, b.row));
+      var open = new ArrayList<DataInputStream>();
+      try {
+        for (var run : runs) {
+          var in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+          open.add(in);
+          var reader = new Run(in);
+          if (reader.next()) {
+            merging.add(reader);
+          }
+        }
+        var held = new Run(rows.iterator());
+        if (held.next()) {
+          merging.add(held);
+        }
+        while (!merging.isEmpty()) {
+          var smallest = merging.poll();
+          var row = smallest.row;
+          writer.putRow(row.hashed(), row.crc(), row.name(), row.path(), row.size());
+          if (smallest.next()) {
+            merging.add(smallest);
+          }
+        }
+      } finally {
+        for (var in : open) {
+          in.close();
+        }
+        for (var run : runs) {
+          run.delete();
+        }
+        runs.clear();
+        rows.clear();
+      }
+    }
+  }
+
+  /**
+   * Open addressing map of long keys to int values without boxing; a value of -1 means no entry,
+   * so -1 can't be stored
+   */
+  static class LongIntMap {
+    long[] keys;
+    int[] values;
+    int size;
+
+    LongIntMap(int expected) {
+      int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1; // at most half full
+      keys = new long[capacity];
+      values = new int[capacity];
+      Arrays.fill(values, -1);
+    }
+
+    int slot(long key) {
+      long h = key * 0x9E3779B97F4A7C15L; // spread sizes and hashes that differ only in the high bits
+      int mask = keys.length - 1;
+      int i = (int)(h ^ (h >>> 32)) & mask;
+      while (values[i] != -1 && keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    int get(long key) {
+      return values[slot(key)];
+    }
+
+    void put(long key, int value) {
+      int i = slot(key);
+      if (values[i] == -1) {
+        if (++size * 2 > keys.length) {
+          grow();
+          i = slot(key);
+        }
+        keys[i] = key;
+      }
+      values[i] = value;
+    }
+
+    /**
+     * @return the new value
+     */
+    int increment(long key) {
+      int value = get(key);
+      put(key, value == -1 ? 1 : value + 1);
+      return value + (value == -1 ? 2 : 1);
+    }
+
+    void grow() {
+      var oldKeys = keys;
+      var oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new int[oldValues.length * 2];
+      Arrays.fill(values, -1);
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] != -1) {
+          int slot = slot(oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Compact records of listed files: the parent directories are interned and numbered, the names
+   * are UTF-8 in off-heap arena chunks (so a big scan needs -XX:MaxDirectMemorySize rather than a
+   * big heap), and the sizes are a parallel primitive array. With attributes the rest of a
+   * FileEntry is kept in parallel arrays too (the file keys in the arena like the names), and
+   * indexed records can be found by path. Records are read back through a Cursor, or one at a time
+   * as a FileEntry.
+   */
+  static class FileRecordStore {
+    static final int ARENA_CHUNK_SIZE = 16*1024*1024;
+    static final int UTF_16 = 0x8000; // in the 2 byte length of a string UTF-8 can't encode (an unpaired surrogate, which NTFS allows), kept as chars
+    static final byte MODIFIED = 1; // flags of the attributes that aren't null
+    static final byte CRC = 2;
+    static final byte PHASH = 4;
+    static final byte REHASHED = 8; // a hash was calculated that the db row doesn't have yet
+    static final byte SEEN = 16; // incremental mode previous listing found again
+    final boolean attributes;
+    final boolean indexed;
+    int count;
+    int[] dirs = new int[1024]; // index in dirPaths
+    long[] names = new long[1024]; // arena chunk in the high int, offset of the name's 2 byte length in the low int
+    long[] sizes = new long[1024];
+    long[] modified; // milliseconds
+    long[] fileKeys; // in the arena like the names, or -1 where the file system has none
+    long[] rowids;
+    long[] crcs;
+    long[] phashes;
+    byte[] flags;
+    LongIntMap firstByName; // first record by directory in the high int and hash of the name in the low int
+    int[] nextWithName; // -1 or the next record of the same directory and name hash
+    final HashMap<String, Integer> dirIndex = new HashMap<>();
+    final ArrayList<String> dirPaths = new ArrayList<>();
+    final ArrayList<ByteBuffer> arena = new ArrayList<>();
+    final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    /**
+     * Only the paths and sizes
+     */
+    FileRecordStore() {
+      this(false, false);
+    }
+
+    /**
+     * @param attributes the modified times, file keys, rowids, hashes and flags are kept too
+     * @param indexed records are found by path with find()
+     */
+    FileRecordStore(boolean attributes, boolean indexed) {
+      this.attributes = attributes;
+      this.indexed = indexed;
+      if (attributes) {
+        modified = new long[1024];
+        fileKeys = new long[1024];
+        rowids = new long[1024];
+        crcs = new long[1024];
+        phashes = new long[1024];
+        flags = new byte[1024];
+      }
+      if (indexed) {
+        firstByName = new LongIntMap(1024);
+        nextWithName = new int[1024];
+      }
+    }
+
+    /**
+     * @return the new record's number
+     */
+    synchronized int add(File file, long size) {
+      if (count == sizes.length) {
+        grow(count + (count >> 1));
+      }
+      var parent = file.getParent();
+      var dir = dirIndex.get(parent);
+      if (dir == null) {
+        dir = dirPaths.size();
+        dirIndex.put(parent, dir);
+        dirPaths.add(parent);
+      }
+      dirs[count] = dir;
+      names[count] = addString(file.getName());
+      sizes[count] = size;
+      if (attributes) {
+        fileKeys[count] = -1;
+        rowids[count] = -1;
+        flags[count] = 0;
+      }
+      if (indexed) {
+        long key = nameKey(dir, file.getName());
+        nextWithName[count] = firstByName.get(key);
+        firstByName.put(key, count);
+      }
+      return count++;
+    }
+
+    /**
+     * @return the new record's number
+     */
+    synchronized int add(FileEntry entry) {
+      int record = add(entry.file, entry.size);
+      set(record, entry);
+      return record;
+    }
+
+    /**
+     * Replace the size and attributes of a record with the entry's; the path stays
+     */
+    synchronized void set(int record, FileEntry entry) {
+      sizes[record] = entry.size;
+      flags[record] = 0;
+      if (entry.modified != null) {
+        modified[record] = entry.modified;
+        flags[record] |= MODIFIED;
+      }
+      fileKeys[record] = entry.fileKey == null ? -1 : addString(entry.fileKey);
+      rowids[record] = entry.rowid;
+      if (entry.crc != null) {
+        setCrc(record, entry.crc);
+      }
+      if (entry.phash != null) {
+        setPhash(record, entry.phash);
+      }
+    }
+
+    void grow(int capacity) {
+      dirs = Arrays.copyOf(dirs, capacity);
+      names = Arrays.copyOf(names, capacity);
+      sizes = Arrays.copyOf(sizes, capacity);
+      if (attributes) {
+        modified = Arrays.copyOf(modified, capacity);
+        fileKeys = Arrays.copyOf(fileKeys, capacity);
+        rowids = Arrays.copyOf(rowids, capacity);
+        crcs = Arrays.copyOf(crcs, capacity);
+        phashes = Arrays.copyOf(phashes, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+      }
+      if (indexed) {
+        nextWithName = Arrays.copyOf(nextWithName, capacity);
+      }
+    }
+
+    static long nameKey(int dir, String name) {
+      return (long)dir << 32 | (name.hashCode() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Only reads, so the walker threads can find records at the same time as long as none are added
+     * @return the record of the file or -1
+     */
+    int find(File file) {
+      var dir = dirIndex.get(file.getParent());
+      if (dir == null) {
+        return -1;
+      }
+      var name = file.getName();
+      int record = firstByName.get(nameKey(dir, name));
+      while (record != -1 && !name(record).equals(name)) {
+        record = nextWithName[record];
+      }
+      return record;
+    }
+
+    long addString(String string) {
+      var chars = CharBuffer.wrap(string);
+      var chunk = arena.isEmpty() ? null : arena.get(arena.size() - 1);
+      if (chunk == null || chunk.remaining() < 2 + string.length() * 3) { // room for the worst case UTF-8
+        chunk = ByteBuffer.allocateDirect(ARENA_CHUNK_SIZE);
+        arena.add(chunk);
+      }
+      int start = chunk.position();
+      chunk.position(start + 2);
+      if (encoder.reset().encode(chars, chunk, true).isError()) {
+        chunk.position(start + 2); // the bytes of the malformed input would be cut short, so the chars are kept
+        for (int i = 0; i < string.length(); i++) {
+          chunk.putChar(string.charAt(i));
+        }
+        chunk.putShort(start, (short)(UTF_16 | string.length()));
+      }
+      else {
+        chunk.putShort(start, (short)(chunk.position() - start - 2));
+      }
+      return (long)(arena.size() - 1) << 32 | start;
+    }
+
+    String string(long location) {
+      var chunk = arena.get((int)(location >>> 32));
+      int start = (int)location;
+      int length = chunk.getShort(start) & 0xFFFF;
+      if ((length & UTF_16) != 0) {
+        var chars = new char[length & ~UTF_16];
+        for (int i = 0; i < chars.length; i++) {
+          chars[i] = chunk.getChar(start + 2 + 2 * i);
+        }
+        return new String(chars);
+      }
+      var bytes = new byte[length];
+      chunk.get(start + 2, bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Forget all the records but keep the arrays and the first arena chunk to reuse
+     */
+    synchronized void clear() {
+      count = 0;
+      dirIndex.clear();
+      dirPaths.clear();
+      while (arena.size() > 1) {
+        arena.remove(arena.size() - 1);
+      }
+      if (!arena.isEmpty()) {
+        arena.get(0).clear();
+      }
+      if (indexed) {
+        firstByName = new LongIntMap(1024);
+      }
+    }
+
+    String path(int record) {
+      return new File(dirPaths.get(dirs[record]), name(record)).getPath();
+    }
+
+    String name(int record) {
+      return string(names[record]);
+    }
+
+    Long modified(int record) {
+      return hasFlag(record, MODIFIED) ? modified[record] : null;
+    }
+
+    String fileKey(int record) {
+      return fileKeys[record] == -1 ? null : string(fileKeys[record]);
+    }
+
+    Long crc(int record) {
+      return hasFlag(record, CRC) ? crcs[record] : null;
+    }
+
+    void setCrc(int record, long crc) {
+      crcs[record] = crc;
+      setFlag(record, CRC);
+    }
+
+    Long phash(int record) {
+      return hasFlag(record, PHASH) ? phashes[record] : null;
+    }
+
+    void setPhash(int record, long phash) {
+      phashes[record] = phash;
+      setFlag(record, PHASH);
+    }
+
+    boolean hasFlag(int record, byte flag) {
+      return (flags[record] & flag) != 0;
+    }
+
+    void setFlag(int record, byte flag) {
+      flags[record] |= flag;
+    }
+
+    /**
+     * The record as a FileEntry, e.g. to store it
+     */
+    FileEntry entry(int record) {
+      var entry = new FileEntry(new File(dirPaths.get(dirs[record]), name(record)), sizes[record]);
+      entry.modified = modified(record);
+      entry.fileKey = fileKey(record);
+      entry.rowid = rowids[record];
+      entry.crc = crc(record);
+      entry.phash = phash(record);
+      return entry;
+    }
+
+    /**
+     * The records in PHYSICAL_ORDER
+     */
+    int[] physicalOrder(int[] records) {
+      var devices = new long[records.length];
+      var inodes = new long[records.length];
+      var order = new Integer[records.length];
+      for (int i = 0; i < records.length; i++) {
+        var fileKey = fileKey(records[i]);
+        devices[i] = FileEntry.fileKeyField(fileKey, "dev");
+        inodes[i] = FileEntry.fileKeyField(fileKey, "ino");
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.comparingLong((Integer i) -> devices[i]).thenComparingLong(i -> inodes[i])); // stable like PHYSICAL_ORDER's sort
+      var sorted = new int[records.length];
+      for (int i = 0; i < records.length; i++) {
+        sorted[i] = records[order[i]];
+      }
+      return sorted;
+    }
+
+    long offHeapBytes() {
+      return (long)arena.size() * ARENA_CHUNK_SIZE;
+    }
+
+    Cursor cursor() {
+      return new Cursor();
+    }
+
+    /**
+     * Positioned before the first record until next() or moveTo()
+     */
+    class Cursor {
+      int record = -1;
+
+      boolean next() {
+        return ++record < count;
+      }
+
+      Cursor moveTo(int record) {
+        this.record = record;
+        return this;
+      }
+
+      int record() {
+        return record;
+      }
+
+      String name() {
+        return FileRecordStore.this.name(record);
+      }
+
+      String dir() {
+        return dirPaths.get(dirs[record]);
+      }
+
+      long size() {
+        return sizes[record];
+      }
+    }
+  }
+
+  /**
+   * The inMemoryDuplicates engine. The listed files are kept in a FileRecordStore and only files
+   * of a size shared with another file are ever read: first their phash (partialHashSample) then,
+   * if that matches too, the whole file.
+   */
+  static class DuplicateFinder {
+    final FileRecordStore records = new FileRecordStore();
+
+    void add(File file, long size) {
+      records.add(file, size);
+    }
+
+    /**
+     * Groups of files with the same size and hash; groups whose hash is the same but size differs
+     * are chained from the one the map finds. Files are numbered by their place in the candidates
+     * so the arrays are only as big as those.
+     */
+    static class Groups {
+      final LongIntMap firstByHash;
+      int count;
+      long[] sizes;
+      long[] hashes;
+      int[] nextWithHash;
+      int[] members; // files in the group
+      int[] firstMember; // -1 or the file whose nextMember continues the list
+      final int[] nextMember; // by file
+
+      Groups(int files) {
+        firstByHash = new LongIntMap(files / 2); // grows if most of the files differ
+        sizes = new long[16];
+        hashes = new long[16];
+        nextWithHash = new int[16];
+        members = new int[16];
+        firstMember = new int[16];
+        nextMember = new int[files];
+      }
+
+      int add(int file, long size, long hash) {
+        int first = firstByHash.get(hash);
+        int group = first;
+        while (group != -1 && sizes[group] != size) {
+          group = nextWithHash[group];
+        }
+        if (group == -1) {
+          if (count == sizes.length) {
+            sizes = Arrays.copyOf(sizes, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+            nextWithHash = Arrays.copyOf(nextWithHash, count * 2);
+            members = Arrays.copyOf(members, count * 2);
+            firstMember = Arrays.copyOf(firstMember, count * 2);
+          }
+          group = count++;
+          sizes[group] = size;
+          hashes[group] = hash;
+          nextWithHash[group] = first;
+          firstMember[group] = -1;
+          firstByHash.put(hash, group);
+        }
+        members[group]++;
+        nextMember[file] = firstMember[group];
+        firstMember[group] = file;
+        return group;
+      }
+    }
+
+    void printDuplicates(TextListWriter out) {
+      int count = records.count;
+      var sizes = records.sizes;
+      var sharedSizes = sharedSizes(sizes, count);
+      int candidateCount = 0;
+      for (int i = 0; i < count; i++) {
+        if (Arrays.binarySearch(sharedSizes, sizes[i]) >= 0) {
+          candidateCount++;
+        }
+      }
+      var candidates = new int[candidateCount]; // files that still may have a duplicate
+      candidateCount = 0;
+      for (int i = 0; i < count; i++) {
+        if (Arrays.binarySearch(sharedSizes, sizes[i]) >= 0) {
+          candidates[candidateCount++] = i;
+        }
+      }
+      sharedSizes = null;
+
+      if (partialHashSample > 0) {
+        var partial = new Groups(candidates.length);
+        var partialGroup = new int[candidates.length];
+        for (int c = 0; c < candidates.length; c++) {
+          int i = candidates[c];
+          try {
+            partialGroup[c] = partial.add(c, sizes[i], partialHashFile(records.path(i), sizes[i], partialHashSample));
+          } catch (Exception e) {
+            reportHashError(e);
+            partialGroup[c] = -1; // not a duplicate of anything we can tell
+          }
+        }
+        int remaining = 0;
+        for (int c = 0; c < candidates.length; c++) {
+          if (partialGroup[c] != -1 && partial.members[partialGroup[c]] > 1) {
+            candidates[remaining++] = candidates[c];
+          }
+        }
+        partial = null;
+        partialGroup = null;
+        candidates = Arrays.copyOf(candidates, remaining);
+      }
+
+      var full = new Groups(candidates.length);
+      for (int c = 0; c < candidates.length; c++) {
+        int i = candidates[c];
+        long hash;
+        try {
+          hash = hashFile(records.path(i));
+        } catch (Exception e) {
+          reportHashError(e);
+          continue; // not a duplicate of anything we can tell
+        }
+        full.add(c, sizes[i], hash);
+      }
+
+      // boxed only for the sort and only the groups that have duplicates
+      var duplicateGroups = new ArrayList<Integer>();
+      for (int group = 0; group < full.count; group++) {
+        if (full.members[group] > 1) {
+          duplicateGroups.add(group);
+        }
+      }
+      duplicateGroups.sort((a, b) -> Long.compare(wastedBytes(full, b), wastedBytes(full, a)));
+
+      long totalWasted = 0;
+      var record = records.cursor();
+      for (int group : duplicateGroups) {
+        totalWasted += wastedBytes(full, group);
+        out.line("");
+        out.line(full.members[group] + " files of " + full.sizes[group] + " bytes, " + wastedBytes(full, group) + " bytes wasted");
+        for (int c = full.firstMember[group]; c != -1; c = full.nextMember[c]) {
+          record.moveTo(candidates[c]);
+          out.row(true, full.hashes[group], record.name(), record.dir(), record.size());
+        }
+      }
+      System.out.println("\n" + count + " files listed (" + records.dirPaths.size() + " directories, " + records.offHeapBytes() / (1024*1024) + " MB of names off the heap), "
+          + duplicateGroups.size() + " groups of duplicates, " + totalWasted + " bytes wasted.");
+    }
+
+    /**
+     * The sizes more than one of the files have, sorted for a binary search; found by sorting a
+     * copy of the sizes, which takes less memory than counting them in a map
+     */
+    static long[] sharedSizes(long[] sizes, int count) {
+      var sorted = Arrays.copyOf(sizes, count);
+      Arrays.sort(sorted);
+      int shared = 0;
+      for (int i = 1; i < count; i++) {
+        if (sorted[i] == sorted[i - 1] && (shared == 0 || sorted[shared - 1] != sorted[i])) {
+          sorted[shared++] = sorted[i]; // in place; shared never passes i
+        }
+      }
+      return Arrays.copyOf(sorted, shared);
+    }
+
+    static long wastedBytes(Groups groups, int group) {
+      return (groups.members[group] - 1) * groups.sizes[group];
+    }
+  }
+
+  /*
+   * Flight recorder events; recorded only when a recording has them enabled, e.g. with the dirlist.jfc settings:
+   *   java -XX:StartFlightRecording=settings=dirlist.jfc,filename=dirlist.jfr DirList
+   * and shown in JDK Mission Control or by: jfr print --events dirlist.* dirlist.jfr
+   * The thresholds keep a recording small under load; a threshold of 0 ms records every one.
+   */
+
+  @Name("dirlist.DirectoryListed")
+  @Label("Directory Listed")
+  @Category("DirList")
+  @Description("listFiles of one directory with the filter (not the Files.walkFileTree walker's)")
+  @Threshold("10 ms")
+  static class DirectoryListedEvent extends Event {
+    @Label("Path")
+    String path;
+
+    @Label("Entries")
+    @Description("Files and directories the filter accepted; -1 if the directory couldn't be read")
+    int entries;
+  }
+
+  @Name("dirlist.FileHashed")
+  @Label("File Hashed")
+  @Category("DirList")
+  @Description("calculateHash of one whole file")
+  @Threshold("20 ms")
+  static class FileHashedEvent extends Event {
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("dirlist.InsertBatch")
+  @Label("Insert Batch")
+  @Category("DirList")
+  @Description("executeBatch of the rows inserted or updated since the last one")
+  @Threshold("10 ms")
+  static class InsertBatchEvent extends Event {
+    @Label("Table")
+    String table;
+
+    @Label("Rows")
+    int rows;
+  }
+
+  /**
+   * Counters and latency histograms of a scan, updated by all the walker, hashing and db threads
+   */
+  static class ScanMetrics {
+    final long started = System.currentTimeMillis();
+    final LongAdder entriesListed = new LongAdder(); // files and directories the filter accepted
+    final LongAdder filteredOut = new LongAdder(); // files and directories the filter rejected
+    final LongAdder filesHashed = new LongAdder(); // whole files; not the phash samples
+    final LongAdder bytesHashed = new LongAdder(); // including the phash samples
+    final LongAdder rowsStored = new LongAdder(); // text list and db rows, inserted or updated
+    final LongAdder errors = new LongAdder(); // files that couldn't be hashed and rows the db refused
+    final LatencyHistogram hashLatency = new LatencyHistogram(); // one whole file
+    final LatencyHistogram insertLatency = new LatencyHistogram(); // one executeBatch of up to insertBatchSize rows
+
+    double seconds() {
+      return (System.currentTimeMillis() - started) / 1000.0;
+    }
+
+    /**
+     * Adds this scan as a row of the runs table
+     */
+    void insertRun(Connection connection, String roots) throws SQLException {
+      try (Statement statement = connection.createStatement()) {
+        statement.executeUpdate(CREATE_RUNS_TABLE);
+      }
+      try (var insert = connection.prepareStatement("INSERT INTO runs (started, seconds, roots, entries, filtered, files_hashed, bytes_hashed, rows_stored, errors, "
+          + "hash_p50_us, hash_p99_us, hash_max_us, insert_p50_us, insert_p99_us, insert_max_us) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+        insert.setString(1, java.time.Instant.ofEpochMilli(started).toString());
+        insert.setDouble(2, seconds());
+        insert.setString(3, roots);
+        insert.setLong(4, entriesListed.sum());
+        insert.setLong(5, filteredOut.sum());
+        insert.setLong(6, filesHashed.sum());
+        insert.setLong(7, bytesHashed.sum());
+        insert.setLong(8, rowsStored.sum());
+        insert.setLong(9, errors.sum());
+        insert.setLong(10, hashLatency.percentile(0.50) / 1000);
+        insert.setLong(11, hashLatency.percentile(0.99) / 1000);
+        insert.setLong(12, hashLatency.max.get() / 1000);
+        insert.setLong(13, insertLatency.percentile(0.50) / 1000);
+        insert.setLong(14, insertLatency.percentile(0.99) / 1000);
+        insert.setLong(15, insertLatency.max.get() / 1000);
+        insert.executeUpdate();
+      }
+    }
+
+    /**
+     * entries listed by the last run of these roots, for an ETA; 0 if none
+     */
+    static long previousEntries(Connection connection, String roots) throws SQLException {
+      try (Statement statement = connection.createStatement()) {
+        statement.executeUpdate(CREATE_RUNS_TABLE);
+      }
+      try (var query = connection.prepareStatement("SELECT entries FROM runs WHERE roots = ? ORDER BY rowid DESC LIMIT 1")) {
+        query.setString(1, roots);
+        try (var previous = query.executeQuery()) {
+          return previous.next() ? previous.getLong(1) : 0;
+        }
+      }
+    }
+  }
+
+  static final String CREATE_RUNS_TABLE = "CREATE TABLE IF NOT EXISTS runs (started TEXT, seconds REAL, roots TEXT, entries LONG, filtered LONG, files_hashed LONG, bytes_hashed LONG, rows_stored LONG, errors LONG, "
+      + "hash_p50_us LONG, hash_p99_us LONG, hash_max_us LONG, insert_p50_us LONG, insert_p99_us LONG, insert_max_us LONG)";
+
+  /**
+   * Latencies in power of 2 nanosecond buckets so recording is one atomic increment; percentiles
+   * are the bucket's upper bound, so within a factor of 2
+   */
+  static class LatencyHistogram {
+    final AtomicLongArray buckets = new AtomicLongArray(64); // bucket i counts latencies from 2^(i-1) to 2^i - 1 ns
+    final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+      nanos = Math.max(0, nanos);
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+      max.accumulateAndGet(nanos, Math::max);
+    }
+
+    long percentile(double fraction) {
+      long count = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        count += buckets.get(i);
+      }
+      long target = (long)Math.ceil(count * fraction);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= target && seen > 0) {
+          return Math.min(max.get(), (1L << i) - 1);
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Prints the scan's rates every progressSeconds on a daemon thread instead of the walker threads
+   * printing as they go. The ETA is from the entries of the previous run of the same roots.
+   */
+  static class ProgressReporter extends Thread {
+    final long expectedEntries;
+
+    ProgressReporter(long expectedEntries) {
+      super("progress");
+      setDaemon(true);
+      this.expectedEntries = expectedEntries;
+    }
+
+    static ProgressReporter start(long expectedEntries) {
+      if (progressSeconds <= 0) {
+        return null;
+      }
+      var reporter = new ProgressReporter(expectedEntries);
+      reporter.start();
+      return reporter;
+    }
+
+    @Override
+    public void run() {
+      long lastEntries = 0;
+      long lastBytes = 0;
+      try {
+        while (true) {
+          Thread.sleep(progressSeconds * 1000L);
+          long entries = metrics.entriesListed.sum();
+          long bytes = metrics.bytesHashed.sum();
+          double entryRate = (entries - lastEntries) / (double)progressSeconds;
+          var line = String.format("%,d entries (%,.0f/s), %,d filtered out, %,d MB hashed (%.1f MB/s), hash p99 %.1f ms, insert p99 %.1f ms, %d errors",
+              entries, entryRate, metrics.filteredOut.sum(), bytes / (1024*1024), (bytes - lastBytes) / (1024.0*1024) / progressSeconds,
+              metrics.hashLatency.percentile(0.99) / 1e6, metrics.insertLatency.percentile(0.99) / 1e6, metrics.errors.sum());
+          if (expectedEntries > entries && entryRate > 0) {
+            long eta = (long)((expectedEntries - entries) / entryRate);
+            line += String.format(", ETA %d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60);
+          }
+          System.out.println(line);
+          lastEntries = entries;
+          lastBytes = bytes;
+        }
+      } catch (InterruptedException e) {
+        // the scan finished
+      }
+    }
+
+    void finish() {
+      interrupt();
+      System.out.printf("%n%,d entries, %,d filtered out, %,d files hashed (%,d MB), %,d rows in %.1f s; hash p50 %.2f ms p99 %.2f ms, insert p50 %.2f ms p99 %.2f ms, %d errors.%n",
+          metrics.entriesListed.sum(), metrics.filteredOut.sum(), metrics.filesHashed.sum(), metrics.bytesHashed.sum() / (1024*1024), metrics.rowsStored.sum(),
+          metrics.seconds(), metrics.hashLatency.percentile(0.50) / 1e6, metrics.hashLatency.percentile(0.99) / 1e6,
+          metrics.insertLatency.percentile(0.50) / 1e6, metrics.insertLatency.percentile(0.99) / 1e6, metrics.errors.sum());
+    }
+  }
+
+  /**
+   * The deviceScheduler: the roots are grouped by the device (FileStore) they're on and each device
+   * gets its own thread, so drives are walked and hashed at the same time while the roots of one
+   * drive are walked one after another. Each root is walked by as many threads as its device allows.
+   */
+  static class DeviceScheduler {
+    final LinkedHashMap<FileStore, List<String>> rootsByDevice = new LinkedHashMap<>();
+
+    DeviceScheduler(String[] roots) throws IOException {
+      for (var root : roots) {
+        rootsByDevice.computeIfAbsent(Files.getFileStore(Paths.get(root)), device -> new ArrayList<>()).add(root);
+      }
+    }
+
+    void walk(Filewalker fw) throws IOException {
+      var executor = Executors.newFixedThreadPool(rootsByDevice.size());
+      var failure = new AtomicReference<Throwable>();
+      try {
+        var devices = new ArrayList<Future<Void>>();
+        for (var device : rootsByDevice.entrySet()) {
+          int concurrency = concurrency(device.getKey(), device.getValue());
+          System.out.println("Device " + device.getKey().name() + " (" + concurrency + " at once): " + String.join(", ", device.getValue()) + ".");
+          devices.add(executor.submit(() -> {
+            try {
+              for (var rootDirectory : device.getValue()) {
+                System.out.println("Start finding desired (filtered) files in " + rootDirectory + ".");
+                fw.walkRoot(rootDirectory, concurrency);
+              }
+            } catch (Throwable e) {
+              if (failure.compareAndSet(null, e)) {
+                fw.stopWalking = true; // the failure is the first one, not one of the stopped walks'
+              }
+              throw e;
+            }
+            return null;
+          }));
+        }
+        for (var device : devices) {
+          try {
+            device.get(); // all of them, so none is still storing when the failure is thrown
+          } catch (ExecutionException e) {
+            // the first failure is thrown below
+          }
+        }
+      } catch (InterruptedException e) {
+        fw.stopWalking = true;
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted walking the devices", e);
+      } finally {
+        executor.shutdown();
+        awaitStopped(executor);
+      }
+      if (failure.get() instanceof IOException cause) {
+        throw cause;
+      }
+      if (failure.get() != null) {
+        throw new IOException("Walking a device failed", failure.get());
+      }
+    }
+
+    /**
+     * deviceConcurrency of the first of the device's roots that has one (a FileStore's name is a
+     * volume label on Windows, often empty or the same on several drives), or by whether it's a
+     * spinning disk
+     */
+    static int concurrency(FileStore device, List<String> roots) {
+      for (var root : roots) {
+        var configured = deviceConcurrency.get(root);
+        if (configured != null) {
+          return configured;
+        }
+      }
+      return Boolean.FALSE.equals(rotational(device)) ? ssdConcurrency : hddConcurrency;
+    }
+
+    /**
+     * Linux /sys/class/block/<device>/queue/rotational (of the whole disk for a partition)
+     * @return null where it can't be told
+     */
+    static Boolean rotational(FileStore device) {
+      var name = device.name();
+      if (!name.startsWith("/dev/")) {
+        return null;
+      }
+      var devicePath = Paths.get(name);
+      try {
+        devicePath = devicePath.toRealPath(); // /dev/mapper/name is a link to /dev/dm-0
+      } catch (IOException e) {
+        // use the name as it is
+      }
+      try {
+        var block = Paths.get("/sys/class/block", devicePath.getFileName().toString()).toRealPath();
+        for (var directory : List.of(block, block.getParent())) {
+          var flag = directory.resolve("queue/rotational");
+          if (Files.exists(flag)) {
+            return Files.readString(flag).trim().equals("1");
+          }
+        }
+      } catch (IOException e) {
+        // not a block device (e.g. tmpfs or a network share)
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A listed file and its attributes, or a row read back from the db; the sizeFirst and incremental
+   * modes keep them in a FileRecordStore rather than as FileEntrys
+   */
+  static class FileEntry {
+    final File file;
+    final long size;
+    Long modified; // milliseconds
+    String fileKey; // inode and device or null where the file system has none
+    long rowid = -1; // if the file is already in the db
+    Long crc;
+    Long phash;
+    long dirId; // normalizedDirs row in dirs of the file's directory
+
+    FileEntry(File file, long size) {
+      this.file = file;
+      this.size = size;
+    }
+
+    FileEntry(File file, BasicFileAttributes attributes) {
+      this(file, attributes.size());
+      modified = attributes.lastModifiedTime().toMillis();
+      fileKey = attributes.fileKey() == null ? null : attributes.fileKey().toString();
+    }
+
+    /**
+     * A number from a Unix fileKey, "(dev=803,ino=1234)"
+     * @param field dev (hexadecimal) or ino
+     * @return -1 if there's no fileKey or the field isn't in it
+     */
+    static long fileKeyField(String fileKey, String field) {
+      if (fileKey == null) {
+        return -1;
+      }
+      int start = fileKey.indexOf(field + "=");
+      if (start < 0) {
+        return -1;
+      }
+      start += field.length() + 1;
+      int end = start;
+      while (end < fileKey.length() && Character.isLetterOrDigit(fileKey.charAt(end))) {
+        end++;
+      }
+      try {
+        return Long.parseLong(fileKey.substring(start, end), field.equals("dev") ? 16 : 10);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Device then inode; the sort is stable so files without a fileKey keep their order
+   */
+  static final Comparator<FileEntry> PHYSICAL_ORDER = Comparator
+      .comparingLong((FileEntry entry) -> FileEntry.fileKeyField(entry.fileKey, "dev"))
+      .thenComparingLong(entry -> FileEntry.fileKeyField(entry.fileKey, "ino"));
+
+  /**
+   * Virtual threads where the JDK has them (21+)
+   * @return null before Java 21
+   */
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Wait for the threads of a shut down pool to finish their tasks
+   */
+  static void awaitStopped(ExecutorService pool) {
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+        // a thread still hashing a big file
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * SQLite settings for inserting many rows fast. A crash during the scan may lose the scan's
+   * transaction but the db file stays usable (WAL; leaveBulkLoadProfile ends it). synchronous can't be changed inside a
+   * transaction so it's set here, before the scan's BEGIN, and stays NORMAL: with WAL a COMMIT
+   * isn't synced but each WAL checkpoint is.
+   * Its page_size is set before the lock check, which would already give a new db the default one.
+   */
+  static void applyBulkLoadProfile(Statement statement) throws SQLException {
+    statement.execute("PRAGMA journal_mode = WAL");
+    statement.execute("PRAGMA synchronous = NORMAL");
+    statement.execute("PRAGMA cache_size = -262144"); // KiB so 256 MiB
+    statement.execute("PRAGMA temp_store = MEMORY");
+    statement.execute("PRAGMA mmap_size = 1073741824");
+    System.out.println("Bulk load settings applied.");
+  }
+
+  /**
+   * Copy the committed WAL into the db file, syncing both; outside a transaction
+   * @param mode PASSIVE doesn't wait for readers; TRUNCATE also empties the WAL file
+   */
+  static void checkpointWal(Statement statement, String mode) throws SQLException {
+    statement.execute("PRAGMA wal_checkpoint(" + mode + ")");
+  }
+
+  /**
+   * After the scan's transaction: the WAL synced into the db file and the file back to the
+   * rollback journal, since journal_mode is kept in the db file and WAL would stay for every later
+   * use of it
+   */
+  static void leaveBulkLoadProfile(Statement statement) throws SQLException {
+    checkpointWal(statement, "TRUNCATE");
+    statement.execute("PRAGMA journal_mode = DELETE");
+  }
+
+  /**
+   * Record the hashAlgorithm in a new db or stop if the db was made with another one.
+   * A db from before the metadata table has CRC32 hashes.
+   */
+  static void checkHashAlgorithm(Statement statement) throws SQLException {
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS metadata (key TEXT PRIMARY KEY, value TEXT)");
+    String dbAlgorithm = null;
+    try (var row = statement.executeQuery("SELECT value FROM metadata WHERE key = 'hash_algorithm'")) {
+      if (row.next()) {
+        dbAlgorithm = row.getString(1);
+      }
+    }
+    if (dbAlgorithm == null) {
+      boolean hasRows;
+      try (var row = statement.executeQuery("SELECT 1 FROM " + filesTable + " LIMIT 1")) {
+        hasRows = row.next();
+      }
+      dbAlgorithm = hasRows ? "CRC32" : hashAlgorithm;
+      statement.executeUpdate("INSERT INTO metadata(key, value) VALUES('hash_algorithm', '" + dbAlgorithm + "')");
+    }
+    if (!dbAlgorithm.equals(hashAlgorithm)) {
+      throw new IllegalStateException("The db hashes are " + dbAlgorithm + " but hashAlgorithm is " + hashAlgorithm + "; use clearDB or the same hashAlgorithm.");
+    }
+    System.out.println("Hash algorithm " + hashAlgorithm + ".");
+  }
+
+  static boolean hasTable(Statement statement, String table) throws SQLException {
+    try (var tables = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'")) {
+      return tables.next();
+    }
+  }
+
+  /**
+   * The normalizedDirs schema; each directory is one dirs row named relative to its parent so a
+   * path is stored once for all its files. root is the id of the top directory (drive) for
+   * index-driven filters and deletes of a whole drive.
+   * The files view puts the paths back together in the columns of the files table.
+   */
+  static void createNormalizedTables(Statement statement) throws SQLException {
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS dirs (id INTEGER PRIMARY KEY, parent_id INTEGER, name TEXT, root INTEGER)");
+    statement.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS dirs_parent_name ON dirs(parent_id, name)");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS dirs_root ON dirs(root)");
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS file_rows (crc LONG, name TEXT, dir_id INTEGER, size LONG, phash LONG, modified LONG, filekey TEXT)");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS file_rows_dir ON file_rows(dir_id)");
+
+    var separator = File.separator.replace("'", "''");
+    statement.executeUpdate("CREATE VIEW IF NOT EXISTS dir_paths AS"
+      + " WITH RECURSIVE p(id, path) AS ("
+      + " SELECT id, name FROM dirs WHERE parent_id IS NULL"
+      + " UNION ALL"
+      + " SELECT d.id, p.path || CASE WHEN substr(p.path, -1) = '" + separator + "' THEN '' ELSE '" + separator + "' END || d.name"
+      + " FROM dirs d JOIN p ON d.parent_id = p.id)"
+      + " SELECT id, path FROM p");
+    statement.executeUpdate("CREATE VIEW IF NOT EXISTS files AS"
+      + " SELECT f.crc, f.name, p.path, f.size, f.phash, f.modified, f.filekey, f.rowid AS rowid"
+      + " FROM file_rows f JOIN dir_paths p ON p.id = f.dir_id");
+  }
+
+  static void dropIndexes(Statement statement) throws SQLException {
+    statement.executeUpdate("DROP INDEX IF EXISTS files_crc");
+    statement.executeUpdate("DROP INDEX IF EXISTS files_size");
+    statement.executeUpdate("DROP INDEX IF EXISTS files_name");
+  }
+
+  /**
+   * Index the files table for the duplicate queries and materialize the groups of files with the
+   * same crc and size, biggest waste first. Rebuilt completely unless only some sizes changed.
+   * @param changedSizes null to rebuild all the groups; otherwise (incremental) only the groups of
+   * these sizes are refilled, at the end of the group_ids so biggest waste first is then by the
+   * wasted_bytes index
+   */
+  static void createIndexesAndDuplicateGroups(Statement statement, Set<Long> changedSizes) throws SQLException {
+    System.out.println("\nIndexing db.");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS files_crc ON " + filesTable + "(crc, size)");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS files_size ON " + filesTable + "(size)");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS files_name ON " + filesTable + "(name)");
+
+    var sizeCondition = "";
+    if (changedSizes != null && hasTable(statement, "duplicate_groups")) {
+      statement.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS changed_sizes (size LONG PRIMARY KEY)");
+      statement.executeUpdate("DELETE FROM changed_sizes");
+      try (var insert = statement.getConnection().prepareStatement("INSERT INTO changed_sizes VALUES(?)")) {
+        synchronized (changedSizes) {
+          for (var size : changedSizes) {
+            insert.setLong(1, size);
+            insert.addBatch();
+          }
+        }
+        insert.executeBatch();
+      }
+      sizeCondition = " AND size IN (SELECT size FROM changed_sizes)";
+      System.out.println(changedSizes.size() + " file sizes changed.");
+    }
+
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS duplicate_groups"
+      + " (group_id INTEGER PRIMARY KEY, crc LONG, size LONG, members LONG, wasted_bytes LONG)");
+    statement.executeUpdate("DELETE FROM duplicate_groups WHERE 1" + sizeCondition);
+    statement.executeUpdate("INSERT INTO duplicate_groups(crc, size, members, wasted_bytes)"
+      + " SELECT crc, size, count(*), (count(*) - 1) * size FROM " + filesTable
+      + " WHERE crc IS NOT NULL" + sizeCondition + " GROUP BY crc, size HAVING count(*) > 1"
+      + " ORDER BY (count(*) - 1) * size DESC");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS duplicate_groups_wasted ON duplicate_groups(wasted_bytes)");
+    System.out.println("Duplicate groups found.");
+  }
+
+  /**
+   * Exclusion rules for the walk compiled once from the filterFile (or DEFAULT_FILTER_RULES).
+   * Each entry's path is made once and checked against a prefix trie, a suffix trie and a hash set
+   * of extensions so the cost doesn't grow with the number of those rules.
+   *
+   * One rule per line; # starts a comment:
+   *   dir|file|any  prefix|suffix|contains|glob  text      matched to the absolute path
+   *   dir|file|any  extension  ext [ext ...]             file name's extension, any case
+   *   dir|file|any  name-contains  text                  file name, any case
+   *   file  min-size|max-size  bytes                     files outside the range are excluded
+   *   any  hidden                                        hidden files and directories are excluded
+   * Entries that are neither a directory nor a file are always excluded.
+   */
+  static class PathFilter implements FileFilter {
+    static final String DEFAULT_FILTER_RULES = """
+      any hidden
+      # user option to suppress any directories to list
+      # but not the directory of a saved web page
+      dir suffix _files
+      # and not \\AppData directories
+      dir suffix \\AppData
+      # and not \\. directories
+      dir contains \\.
+      dir prefix C:\\Windows
+      dir prefix C:\\Users\\Public\\wpilib\\
+      dir prefix C:\\opencv\\
+      dir prefix C:\\Program Files
+      # user option to suppress any file types or files to list
+      file extension bin js lock dll class json md sys pdb gradle mk prefs
+      file name-contains licen
+      """;
+
+    final Rules dirRules = new Rules();
+    final Rules fileRules = new Rules();
+    boolean excludeHidden;
+
+    static class Rules {
+      final PathTrie prefixes = new PathTrie();
+      final PathTrie suffixes = new PathTrie(); // reversed
+      final HashSet<String> extensions = new HashSet<>();
+      final List<String> contains = new ArrayList<>();
+      final List<String> nameContains = new ArrayList<>();
+      final List<PathMatcher> globs = new ArrayList<>();
+      long minSize = 0;
+      long maxSize = Long.MAX_VALUE;
+
+      boolean excludes(String path, String name, long size) {
+        if (prefixes.matchesStartOf(path) || suffixes.matchesEndOf(path)) {
+          return true;
+        }
+        if (!extensions.isEmpty()) {
+          int dot = name.lastIndexOf('.');
+          if (dot >= 0 && extensions.contains(name.substring(dot + 1).toLowerCase())) {
+            return true;
+          }
+        }
+        if (size < minSize || size > maxSize) {
+          return true;
+        }
+        for (var text : contains) {
+          if (path.contains(text)) {
+            return true;
+          }
+        }
+        if (!nameContains.isEmpty()) {
+          var lowerCaseName = name.toLowerCase();
+          for (var text : nameContains) {
+            if (lowerCaseName.contains(text)) {
+              return true;
+            }
+          }
+        }
+        if (!globs.isEmpty()) {
+          var asPath = Paths.get(path);
+          for (var glob : globs) {
+            if (glob.matches(asPath)) {
+              return true;
+            }
+          }
+        }
+        return false;
+      }
+
+      boolean needsSize() {
+        return minSize > 0 || maxSize < Long.MAX_VALUE;
+      }
+    }
+
+    /**
+     * Compile the rules of the file, or the default rules if there is no such file
+     */
+    static PathFilter load(String filterFile) throws IOException {
+      var rulesFile = new File(filterFile);
+      if (!rulesFile.exists()) {
+        System.out.println("No " + filterFile + "; using the default filter.");
+        return new PathFilter(DEFAULT_FILTER_RULES.lines().toList());
+      }
+      System.out.println("Filter rules from " + filterFile + ".");
+      return new PathFilter(Files.readAllLines(rulesFile.toPath()));
+    }
+
+    PathFilter(List<String> lines) {
+      int lineNumber = 0;
+      for (var line : lines) {
+        lineNumber++;
+        line = line.strip();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        var fields = line.split("\\s+", 3);
+        var target = fields[0];
+        var kind = fields.length > 1 ? fields[1] : "";
+        var value = fields.length > 2 ? fields[2] : "";
+        List<Rules> targets = switch (target) {
+          case "dir" -> List.of(dirRules);
+          case "file" -> List.of(fileRules);
+          case "any" -> List.of(dirRules, fileRules);
+          default -> throw new IllegalArgumentException("Filter line " + lineNumber + ": not dir, file or any: " + line);
+        };
+        if (!kind.equals("hidden") && value.isEmpty()) {
+          throw new IllegalArgumentException("Filter line " + lineNumber + ": no value: " + line);
+        }
+        for (var rules : targets) {
+          switch (kind) {
+            case "prefix" -> rules.prefixes.add(value, false);
+            case "suffix" -> rules.suffixes.add(value, true);
+            case "contains" -> rules.contains.add(value);
+            case "glob" -> rules.globs.add(FileSystems.getDefault().getPathMatcher("glob:" + value));
+            case "extension" -> {
+              for (var extension : value.toLowerCase().split("\\s+")) {
+                rules.extensions.add(extension.startsWith(".") ? extension.substring(1) : extension);
+              }
+            }
+            case "name-contains" -> rules.nameContains.add(value.toLowerCase());
+            case "min-size" -> rules.minSize = Long.parseLong(value);
+            case "max-size" -> rules.maxSize = Long.parseLong(value);
+            case "hidden" -> excludeHidden = true;
+            default -> throw new IllegalArgumentException("Filter line " + lineNumber + ": unknown rule: " + line);
+          }
+        }
+      }
+    }
+
+    /**
+     * For a walker that already has the attributes; no more stat calls
+     */
+    public boolean accept(Path path, BasicFileAttributes attributes) {
+      var directory = attributes.isDirectory();
+      if (!directory && !attributes.isRegularFile()) {
+        return false;
+      }
+      var fileName = path.getFileName();
+      var name = fileName == null ? "" : fileName.toString();
+      if (excludeHidden && (attributes instanceof DosFileAttributes dosAttributes ? dosAttributes.isHidden() : name.startsWith("."))) {
+        return false; // Windows attributes are DosFileAttributes; elsewhere hidden is a leading dot
+      }
+      var rules = directory ? dirRules : fileRules;
+      return !rules.excludes(path.toAbsolutePath().toString(), name, attributes.size());
+    }
+
+    @Override
+    public boolean accept(File file) {
+      var directory = file.isDirectory();
+      if (!directory && !file.isFile()) {
+        return false;
+      }
+      if (excludeHidden && file.isHidden()) {
+        return false;
+      }
+      var rules = directory ? dirRules : fileRules;
+      return !rules.excludes(file.getAbsolutePath(), file.getName(), rules.needsSize() ? file.length() : 0);
+    }
+  }
+
+  /**
+   * Character trie of path prefixes (or of reversed suffixes) checked in one pass over the path
+   */
+  static class PathTrie {
+    final HashMap<Character, PathTrie> children = new HashMap<>();
+    boolean ends; // a prefix ends at this node
+
+    void add(String text, boolean reversed) {
+      var node = this;
+      for (int i = 0; i < text.length(); i++) {
+        var c = text.charAt(reversed ? text.length() - 1 - i : i);
+        node = node.children.computeIfAbsent(c, k -> new PathTrie());
+      }
+      node.ends = true;
+    }
+
+    boolean matchesStartOf(String path) {
+      var node = this;
+      for (int i = 0; i < path.length() && !node.ends; i++) {
+        node = node.children.get(path.charAt(i));
+        if (node == null) {
+          return false;
+        }
+      }
+      return node.ends;
+    }
+
+    boolean matchesEndOf(String path) {
+      var node = this;
+      for (int i = path.length() - 1; i >= 0 && !node.ends; i--) {
+        node = node.children.get(path.charAt(i));
+        if (node == null) {
+          return false;
+        }
+      }
+      return node.ends;
+    }
+  }
+
+  static Long getNullableLong(java.sql.ResultSet resultSet, int column) throws SQLException {
+    var value = resultSet.getLong(column);
+    return resultSet.wasNull() ? null : value;
+  }
+
+  static void setNullableLong(PreparedStatement statement, int parameter, Long value) throws SQLException {
+    if (value == null) {
+      statement.setNull(parameter, java.sql.Types.BIGINT);
+    }
+    else {
+      statement.setLong(parameter, value);
+    }
+  }
+
+  /**
+   * Add a column to a table of a db created by an older version of this program
+   */
+  static void addMissingColumn(Statement statement, String table, String column, String type) throws SQLException {
+    try (var columns = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+      while (columns.next()) {
+        if (columns.getString("name").equalsIgnoreCase(column)) {
+          return;
+        }
+      }
+    }
+    statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+  }
+
+  /**
+   * A content hash of a file fed in pieces; the value is 64 bits or less to fit the crc column.
+   * The hashAlgorithm of a run is one of the names in create.
+   */
+  interface ContentHasher {
+    void update(ByteBuffer data);
+    void update(byte[] data, int offset, int length);
+    long value();
+
+    static ContentHasher create(String algorithm) {
+      return switch (algorithm) {
+        case "CRC32" -> new ChecksumHasher(new CRC32());
+        case "CRC32C" -> new ChecksumHasher(new CRC32C()); // CPU instruction on most machines
+        case "XXH64" -> new XxHash64Hasher();
+        case "SHA-256" -> new Sha256Hasher();
+        default -> throw new IllegalArgumentException("Unknown hashAlgorithm " + algorithm + "; CRC32, CRC32C, XXH64 or SHA-256");
+      };
+    }
+  }
+
+  static class ChecksumHasher implements ContentHasher {
+    final Checksum checksum;
+
+    ChecksumHasher(Checksum checksum) {
+      this.checksum = checksum;
+    }
+
+    public void update(ByteBuffer data) {
+      checksum.update(data);
+    }
+
+    public void update(byte[] data, int offset, int length) {
+      checksum.update(data, offset, length);
+    }
+
+    public long value() {
+      return checksum.getValue();
+    }
+  }
+
+  /**
+   * The first 64 bits of the SHA-256 digest
+   */
+  static class Sha256Hasher implements ContentHasher {
+    final MessageDigest digest;
+
+    Sha256Hasher() {
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e); // every Java has SHA-256
+      }
+    }
+
+    public void update(ByteBuffer data) {
+      digest.update(data);
+    }
+
+    public void update(byte[] data, int offset, int length) {
+      digest.update(data, offset, length);
+    }
+
+    public long value() {
+      return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+  }
+
+  /**
+   * xxHash64 (seed 0), a fast 64 bit non-cryptographic hash, computed in 32 byte stripes
+   */
+  static class XxHash64Hasher implements ContentHasher {
+    static final long P1 = 0x9E3779B185EBCA87L;
+    static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    static final long P3 = 0x165667B19E3779F9L;
+    static final long P4 = 0x85EBCA77C2B2AE63L;
+    static final long P5 = 0x27D4EB2F165667C5L;
+
+    long v1 = P1 + P2;
+    long v2 = P2;
+    long v3 = 0;
+    long v4 = -P1;
+    long totalLength = 0;
+    final ByteBuffer stripe = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN); // bytes of an incomplete stripe
+
+    public void update(ByteBuffer data) {
+      var input = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+      totalLength += input.remaining();
+      if (stripe.position() > 0) {
+        while (stripe.hasRemaining() && input.hasRemaining()) {
+          stripe.put(input.get());
+        }
+        if (stripe.hasRemaining()) {
+          data.position(data.limit());
+          return;
+        }
+        stripe.flip();
+        processStripe(stripe);
+        stripe.clear();
+      }
+      while (input.remaining() >= 32) {
+        processStripe(input);
+      }
+      stripe.put(input);
+      data.position(data.limit());
+    }
+
+    public void update(byte[] data, int offset, int length) {
+      update(ByteBuffer.wrap(data, offset, length));
+    }
+
+    void processStripe(ByteBuffer input) {
+      v1 = round(v1, input.getLong());
+      v2 = round(v2, input.getLong());
+      v3 = round(v3, input.getLong());
+      v4 = round(v4, input.getLong());
+    }
+
+    static long round(long accumulator, long input) {
+      return Long.rotateLeft(accumulator + input * P2, 31) * P1;
+    }
+
+    static long mergeRound(long hash, long v) {
+      return (hash ^ round(0, v)) * P1 + P4;
+    }
+
+    public long value() {
+      long hash;
+      if (totalLength >= 32) {
+        hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+        hash = mergeRound(hash, v1);
+        hash = mergeRound(hash, v2);
+        hash = mergeRound(hash, v3);
+        hash = mergeRound(hash, v4);
+      }
+      else {
+        hash = P5;
+      }
+      hash += totalLength;
+
+      var tail = stripe.duplicate().flip().order(ByteOrder.LITTLE_ENDIAN);
+      while (tail.remaining() >= 8) {
+        hash = Long.rotateLeft(hash ^ round(0, tail.getLong()), 27) * P1 + P4;
+      }
+      if (tail.remaining() >= 4) {
+        hash = Long.rotateLeft(hash ^ (tail.getInt() & 0xFFFFFFFFL) * P1, 23) * P2 + P3;
+      }
+      while (tail.hasRemaining()) {
+        hash = Long.rotateLeft(hash ^ (tail.get() & 0xFF) * P5, 11) * P1;
+      }
+
+      hash ^= hash >>> 33;
+      hash *= P2;
+      hash ^= hash >>> 29;
+      hash *= P3;
+      hash ^= hash >>> 32;
+      return hash;
+    }
+  }
+
+  /**
+   * Hash of only the first and last sampleSize bytes of a file (all of it if the file isn't bigger
+   * than the two samples). Errors give 0 the same as calculateHash.
+   */
+  public static long calculatePartialHash(String filePath, long size, int sampleSize) {
+    try {
+      return partialHashFile(filePath, size, sampleSize);
+    } catch(Exception e) {
+      reportHashError(e);
+      return 0;
+    }
+  }
+
+  /**
+   * calculatePartialHash that throws the error instead of giving 0
+   */
+  static long partialHashFile(String filePath, long size, int sampleSize) throws IOException {
+    var hasher = ContentHasher.create(hashAlgorithm);
+    byte[] buffer = new byte[sampleSize];
+
+    try (RandomAccessFile raf = new RandomAccessFile(filePath, "r")) {
+      int headLength = (int)Math.min(sampleSize, size);
+      raf.readFully(buffer, 0, headLength);
+      hasher.update(buffer, 0, headLength);
+
+      long tailStart = Math.max(headLength, size - sampleSize);
+      if (tailStart < size) {
+        int tailLength = (int)(size - tailStart);
+        raf.seek(tailStart);
+        raf.readFully(buffer, 0, tailLength);
+        hasher.update(buffer, 0, tailLength);
+        metrics.bytesHashed.add(tailLength);
+      }
+      metrics.bytesHashed.add(headLength);
+    }
+
+    return hasher.value();
+  }
+
+  static void reportHashError(Exception e) {
+    metrics.errors.increment();
+    System.out.println(String.valueOf(e.getMessage()).replace("\\u", "\\\\u").replace("\\U", "\\\\U")); // if output is used elsewhere, get rid of invalid unicode error
+  }
+
+  static final ConcurrentLinkedQueue<ByteBuffer> hashBuffers = new ConcurrentLinkedQueue<>(); // direct buffers reused by the hashing threads
+
+  /**
+   * The file is read by its FileChannel straight into a reused direct buffer (no copy into a heap
+   * array), or from mmapHashThreshold up mapped into memory, and the buffer given to the hashAlgorithm.
+   */
+  public static long calculateHash(String filePath) throws IOException {
+    try {
+      return hashFile(filePath);
+    } catch(Exception e) {
+      reportHashError(e);
+      return 0; // any caught errors return a 0 crc; usually it's access denied at the open which has crc = 0 initially anyway
+              // This makes the 0 crc look a little odd as several very different and different sized files get the same 0 crc.
+    }
+  }
+
+  /**
+   * calculateHash that throws the error instead of giving 0, for callers that must tell an
+   * unreadable file from a hash of 0
+   */
+  static long hashFile(String filePath) throws IOException {
+    var buffer = hashBuffers.poll();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(hashBufferSize);
+    }
+    var event = new FileHashedEvent();
+    event.begin();
+    long start = System.nanoTime();
+    try {
+      return hashFile(filePath, ContentHasher.create(hashAlgorithm), buffer, mmapHashThreshold);
+    } finally {
+      hashBuffers.offer(buffer);
+      metrics.hashLatency.record(System.nanoTime() - start);
+      metrics.filesHashed.increment();
+      event.end();
+      if (event.shouldCommit()) {
+        event.path = filePath;
+        event.bytes = new File(filePath).length();
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * calculateHash with the hasher, read buffer and mapping threshold given (the bench/ benchmarks vary them)
+   */
+  static long calculateHash(String filePath, ContentHasher hasher, ByteBuffer buffer, long mmapThreshold) {
+    try {
+      return hashFile(filePath, hasher, buffer, mmapThreshold);
+    } catch(Exception e) {
+      reportHashError(e);
+      return 0;
+    }
+  }
+
+  static long hashFile(String filePath, ContentHasher hasher, ByteBuffer buffer, long mmapThreshold) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+      long size = channel.size();
+      metrics.bytesHashed.add(size);
+      if (size >= mmapThreshold) {
+        for (long position = 0; position < size; position += Integer.MAX_VALUE) { // a mapping is limited to 2 GB
+          hasher.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position)));
+        }
+      }
+      else {
+        buffer.clear();
+        while (channel.read(buffer) != -1) {
+          buffer.flip();
+          hasher.update(buffer);
+          buffer.clear();
+        }
+      }
+    }
+
+    return hasher.value();
+  }
+}
+/*
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.apache.commons.io.FilenameUtils;
+
+public class FilenameMethods {
+
+    public static void main(String[] args) throws IOException {
+        File file = new File("/path/to/my/file.txt");
+        Path path = Paths.get("/path/to/my/file.txt");
+
+        System.out.println("File name (File): " + file.getName());
         System.out.println("Absolute path (File): " + file.getAbsolutePath());
         System.out.println("Canonical path (File): " + file.getCanonicalPath());
         System.out.println("Parent directory (File): " + file.getParent());
@@ -302,6 +3538,7 @@ public class FilenameMethods {
  */
 // cd C:\Users\bike1\FRC\2025\DirList
 // sort dirlist.txt /O dirlist.csv
+// (or set sortTextBy)
 
 // select crc, name, path, size
 // from files
@@ -309,6 +3546,10 @@ public class FilenameMethods {
 //   (select crc from files group by crc having count(*) > 1)
 // order by size desc
 
+// select group_id, wasted_bytes, name, path, size
+// from duplicate_groups join files using (crc, size)
+// order by wasted_bytes desc, group_id
+
 // select crc, name, path
 // from files
 // where crc in
@@ -317,6 +3558,10 @@ public class FilenameMethods {
 // order by path COLLATE NOCASE, name COLLATE NOCASE
 
 // delete from files where path like "F:%"   
+
+// normalizedDirs db:
+// delete from file_rows where dir_id in
+//   (select id from dirs where root = (select id from dirs where parent_id is null and name = 'F:\'))
 // rollback
 // commit
 
@@ -0,0 +1,63 @@
+package dirlist;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Temporary files and trees for the benchmarks
+ */
+class BenchFiles {
+  static final String[] EXTENSIONS = {"txt", "jpg", "java", "pdf", "doc"}; // none excluded by DirList's default filter
+
+  static Path randomFile(long size) throws IOException {
+    var file = Files.createTempFile("dirlist-bench", ".bin");
+    var random = new Random(size);
+    var block = new byte[64*1024];
+    try (var out = Files.newOutputStream(file)) {
+      for (long written = 0; written < size; written += block.length) {
+        random.nextBytes(block);
+        out.write(block, 0, (int)Math.min(block.length, size - written));
+      }
+    }
+    return file;
+  }
+
+  /**
+   * A tree of depth levels of width subdirectories each, with filesPerDirectory small files in every directory;
+   * none of them are ones the default filter skips, so a walk with and without it lists the same entries
+   */
+  static Path tree(int depth, int width, int filesPerDirectory) throws IOException {
+    var root = Files.createTempDirectory("dirlist-bench");
+    fill(root, depth, width, filesPerDirectory, new Random(42));
+    return root;
+  }
+
+  static void fill(Path directory, int depth, int width, int filesPerDirectory, Random random) throws IOException {
+    for (int i = 0; i < filesPerDirectory; i++) {
+      var data = new byte[random.nextInt(2048)];
+      random.nextBytes(data);
+      Files.write(directory.resolve("file" + i + "." + EXTENSIONS[i % EXTENSIONS.length]), data);
+    }
+    if (depth == 0) {
+      return;
+    }
+    for (int i = 0; i < width; i++) {
+      fill(Files.createDirectory(directory.resolve("dir" + i)), depth - 1, width, filesPerDirectory, random);
+    }
+  }
+
+  static void delete(Path path) throws IOException {
+    if (path == null) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(path)) {
+      for (var p : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(p);
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package dirlist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * calculateHash of one file (in the page cache after the first read) by algorithm, read buffer
+ * size (hashBufferSize) and whether the file is memory mapped (mmapHashThreshold).
+ * MB/s is ops/s times fileSize.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+  @Param({"CRC32", "CRC32C", "XXH64", "SHA-256"})
+  String algorithm;
+
+  @Param({"8192", "65536", "1048576"})
+  int bufferSize;
+
+  @Param({"false", "true"})
+  boolean mapped;
+
+  @Param({"16777216"})
+  long fileSize;
+
+  Path file;
+  ByteBuffer buffer;
+
+  @Setup
+  public void setup() throws IOException {
+    file = BenchFiles.randomFile(fileSize);
+    buffer = ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    BenchFiles.delete(file);
+  }
+
+  @Benchmark
+  public long hash() {
+    return DirList.calculateHash(file.toString(), DirList.ContentHasher.create(algorithm), buffer, mapped ? 0 : Long.MAX_VALUE);
+  }
+}
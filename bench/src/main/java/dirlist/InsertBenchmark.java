@@ -0,0 +1,105 @@
+package dirlist;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rows per second into the files table through the Filewalker's insert statement, one
+ * executeUpdate per row (batchSize 1) or executeBatch every batchSize rows (insertBatchSize),
+ * with and without the bulkLoadProfile. Each invocation is one transaction like a scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(InsertBenchmark.ROWS)
+public class InsertBenchmark {
+  static final int ROWS = 10_000;
+
+  @Param({"1", "100", "1000", "10000"})
+  int batchSize;
+
+  @Param({"true", "false"})
+  boolean bulkLoadProfile;
+
+  Path dbFile;
+  Connection connection;
+  Statement statement;
+  PreparedStatement insert;
+
+  @Setup
+  public void setup() throws IOException, SQLException {
+    dbFile = Files.createTempFile("dirlist-bench", ".db");
+    Files.delete(dbFile); // a new db so the bulk load page size applies
+    connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+    statement = connection.createStatement();
+    if (bulkLoadProfile) {
+      DirList.applyBulkLoadProfile(statement);
+    }
+    statement.executeUpdate(DirList.CREATE_FILES_TABLE);
+    DirList.filesTable = "files";
+    insert = DirList.x.new Filewalker(null, connection).insertStatement;
+  }
+
+  @Setup(Level.Iteration)
+  public void emptyTable() throws SQLException {
+    statement.executeUpdate("DELETE FROM files");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, SQLException {
+    connection.close();
+    for (var suffix : new String[] {"", "-wal", "-shm", "-journal"}) {
+      Files.deleteIfExists(Path.of(dbFile + suffix));
+    }
+  }
+
+  @Benchmark
+  public void insert() throws SQLException {
+    statement.executeUpdate("BEGIN TRANSACTION");
+    for (int row = 0; row < ROWS; row++) {
+      insert.setLong(1, row * 2654435761L);
+      insert.setLong(2, row);
+      insert.setString(3, "file" + row + ".jpg");
+      insert.setString(4, "C:\\Users\\someone\\Pictures\\" + (row / 100));
+      insert.setLong(5, row * 1000L);
+      insert.setLong(6, 1_700_000_000_000L + row);
+      insert.setString(7, "(dev=803,ino=" + row + ")");
+      if (batchSize == 1) {
+        insert.executeUpdate();
+      }
+      else {
+        insert.addBatch();
+        if ((row + 1) % batchSize == 0) {
+          insert.executeBatch();
+        }
+      }
+    }
+    insert.executeBatch();
+    statement.executeUpdate("COMMIT");
+  }
+}
@@ -0,0 +1,117 @@
+package dirlist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end: generate a TreeGenerator tree in a temp directory, run DirList on it in its own JVM
+ * (with the options compiled into DirList) and report files/s, MB/s hashed, the db size and the
+ * peak RSS of the DirList process. Linux only for the RSS (/proc); nothing else is needed.
+ *
+ *   java -cp bench/target/benchmarks.jar dirlist.ScanBenchmark --shape=mixed --seed=3
+ *
+ * Takes the TreeGenerator options, plus --tree=directory to scan an existing tree instead,
+ * --keep to leave the generated tree and db, and --jvm=option (repeatable) for the DirList JVM.
+ * Run it twice for a warm OS cache.
+ */
+class ScanBenchmark {
+  public static void main(String[] args) throws IOException, InterruptedException, SQLException {
+    boolean keep = false;
+    Path tree = null;
+    var jvmOptions = new ArrayList<String>();
+    for (var arg : args) {
+      if (arg.equals("--keep")) {
+        keep = true;
+      }
+      else if (arg.startsWith("--tree=")) {
+        tree = Path.of(TreeGenerator.value(arg));
+      }
+      else if (arg.startsWith("--jvm=")) {
+        jvmOptions.add(TreeGenerator.value(arg));
+      }
+    }
+
+    var work = Files.createTempDirectory("dirlist-scan");
+    boolean generated = tree == null;
+    if (generated) {
+      tree = work.resolve("tree");
+      var generator = TreeGenerator.fromArgs(args);
+      System.out.println("Generating " + generator + ".");
+      generator.generate(tree);
+      System.out.println(generator.files + " files, " + generator.bytes / (1024*1024) + " MB in " + generator.directories + " directories.");
+    }
+
+    var command = new ArrayList<String>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString()));
+    command.addAll(jvmOptions);
+    command.addAll(List.of("-cp", absoluteClassPath(), "dirlist.DirList", tree.toAbsolutePath().toString()));
+    var log = work.resolve("dirlist.log");
+    long start = System.nanoTime();
+    var process = new ProcessBuilder(command).directory(work.toFile()).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+    long peakRss = 0;
+    while (!process.waitFor(100, TimeUnit.MILLISECONDS)) {
+      peakRss = Math.max(peakRss, peakRssKb(process.pid())); // VmHWM is the peak so far; gone once the process ends
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (process.exitValue() != 0) {
+      System.out.println("DirList failed; see " + log);
+      return;
+    }
+
+    long rows = 0;
+    long hashedBytes = 0;
+    var db = work.resolve("dirlist.db");
+    try (var connection = DriverManager.getConnection("jdbc:sqlite:" + db);
+         var statement = connection.createStatement();
+         var totals = statement.executeQuery("SELECT count(*), total(CASE WHEN crc IS NULL THEN 0 ELSE size END) FROM files")) {
+      totals.next();
+      rows = totals.getLong(1);
+      hashedBytes = totals.getLong(2);
+    }
+    long dbBytes = 0;
+    for (var suffix : new String[] {"", "-wal"}) {
+      var file = Path.of(db + suffix);
+      dbBytes += Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    System.out.printf("%.1f s, %d files, %.0f files/s, %.1f MB/s hashed, db %.1f MB, peak RSS %.0f MB%n",
+        seconds, rows, rows / seconds, hashedBytes / seconds / (1024*1024), dbBytes / (1024.0*1024), peakRss / 1024.0);
+
+    if (keep) {
+      System.out.println("Kept " + work + ".");
+    }
+    else {
+      BenchFiles.delete(work);
+    }
+  }
+
+  /**
+   * This JVM's class path with each entry absolute since DirList runs in the work directory
+   */
+  static String absoluteClassPath() {
+    var entries = new ArrayList<String>();
+    for (var entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      entries.add(Path.of(entry).toAbsolutePath().toString());
+    }
+    return String.join(File.pathSeparator, entries);
+  }
+
+  static long peakRssKb(long pid) {
+    try {
+      for (var line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+        if (line.startsWith("VmHWM:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // the process just ended or this isn't Linux
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,170 @@
+package dirlist;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds a reproducible tree to scan: the same seed and shape always give the same directories,
+ * names, sizes and contents. A shape is a preset (deep, wide, tiny or mixed) whose values may be
+ * overridden one by one.
+ *
+ *   java -cp bench/target/benchmarks.jar dirlist.TreeGenerator /tmp/tree --shape=tiny --seed=7 --files=50
+ *
+ * Options: --seed --shape --depth --width --files (per directory) --max-size (bytes of the small files)
+ * --huge (number of huge files) --huge-size (MB) --duplicates (fraction of the small files that copy an earlier one)
+ */
+class TreeGenerator {
+  long seed = 1;
+  int depth;
+  int width;
+  int filesPerDirectory;
+  int maxSize;
+  int hugeFiles;
+  long hugeSize; // bytes
+  double duplicates;
+
+  static final String[] EXTENSIONS = {"txt", "jpg", "pdf", "doc", "png", "dat"}; // none excluded by DirList's default filter
+  static final int DUPLICATE_POOL = 1000; // earlier small files a duplicate copies from
+
+  // counted as the tree is built
+  long files;
+  long directories;
+  long bytes;
+  long duplicateFiles;
+
+  final List<byte[]> pool = new ArrayList<>();
+  Random random;
+
+  TreeGenerator shape(String shape) {
+    switch (shape) {
+      case "deep" -> set(12, 2, 5, 4096, 0, 0, 0.05);
+      case "wide" -> set(2, 300, 20, 16384, 0, 0, 0.05);
+      case "tiny" -> set(3, 40, 50, 512, 0, 0, 0.10); // 3.3 million tiny files
+      case "mixed" -> set(4, 8, 20, 65536, 4, 256L*1024*1024, 0.10);
+      default -> throw new IllegalArgumentException("Unknown shape " + shape + "; deep, wide, tiny or mixed");
+    }
+    return this;
+  }
+
+  void set(int depth, int width, int filesPerDirectory, int maxSize, int hugeFiles, long hugeSize, double duplicates) {
+    this.depth = depth;
+    this.width = width;
+    this.filesPerDirectory = filesPerDirectory;
+    this.maxSize = maxSize;
+    this.hugeFiles = hugeFiles;
+    this.hugeSize = hugeSize;
+    this.duplicates = duplicates;
+  }
+
+  /**
+   * @param args --name=value options after the shape's; others are ignored
+   */
+  static TreeGenerator fromArgs(String[] args) {
+    var shape = "mixed";
+    for (var arg : args) {
+      if (arg.startsWith("--shape=")) {
+        shape = value(arg);
+      }
+    }
+    var generator = new TreeGenerator().shape(shape);
+    for (var arg : args) {
+      var name = arg.contains("=") ? arg.substring(0, arg.indexOf('=')) : arg;
+      switch (name) {
+        case "--seed" -> generator.seed = Long.parseLong(value(arg));
+        case "--depth" -> generator.depth = Integer.parseInt(value(arg));
+        case "--width" -> generator.width = Integer.parseInt(value(arg));
+        case "--files" -> generator.filesPerDirectory = Integer.parseInt(value(arg));
+        case "--max-size" -> generator.maxSize = Integer.parseInt(value(arg));
+        case "--huge" -> generator.hugeFiles = Integer.parseInt(value(arg));
+        case "--huge-size" -> generator.hugeSize = Long.parseLong(value(arg)) * 1024 * 1024;
+        case "--duplicates" -> generator.duplicates = Double.parseDouble(value(arg));
+        default -> { }
+      }
+    }
+    return generator;
+  }
+
+  static String value(String arg) {
+    return arg.substring(arg.indexOf('=') + 1);
+  }
+
+  void generate(Path root) throws IOException {
+    random = new Random(seed);
+    Files.createDirectories(root);
+    fill(root, depth);
+    for (int i = 0; i < hugeFiles; i++) {
+      var directory = root;
+      for (int level = 0; level < depth && width > 0; level++) { // somewhere down the tree
+        directory = directory.resolve("dir" + random.nextInt(width));
+      }
+      writeHuge(directory.resolve("huge" + i + ".dat"));
+    }
+  }
+
+  void fill(Path directory, int levelsBelow) throws IOException {
+    Files.createDirectories(directory);
+    directories++;
+    for (int i = 0; i < filesPerDirectory; i++) {
+      byte[] data;
+      if (!pool.isEmpty() && random.nextDouble() < duplicates) {
+        data = pool.get(random.nextInt(pool.size()));
+        duplicateFiles++;
+      }
+      else {
+        data = new byte[random.nextInt(maxSize + 1)];
+        random.nextBytes(data);
+        if (pool.size() < DUPLICATE_POOL) {
+          pool.add(data);
+        }
+        else {
+          pool.set(random.nextInt(DUPLICATE_POOL), data);
+        }
+      }
+      Files.write(directory.resolve("file" + i + "." + EXTENSIONS[random.nextInt(EXTENSIONS.length)]), data);
+      files++;
+      bytes += data.length;
+    }
+    if (levelsBelow > 0) {
+      for (int i = 0; i < width; i++) {
+        fill(directory.resolve("dir" + i), levelsBelow - 1);
+      }
+    }
+  }
+
+  void writeHuge(Path file) throws IOException {
+    var block = new byte[1024*1024];
+    var blockRandom = new Random(random.nextLong());
+    try (OutputStream out = Files.newOutputStream(file)) {
+      for (long written = 0; written < hugeSize; written += block.length) {
+        blockRandom.nextBytes(block);
+        out.write(block, 0, (int)Math.min(block.length, hugeSize - written));
+      }
+    }
+    files++;
+    bytes += hugeSize;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("seed %d, depth %d, width %d, %d files per directory of up to %d bytes, %d huge files of %d MB, %.0f%% duplicates",
+        seed, depth, width, filesPerDirectory, maxSize, hugeFiles, hugeSize / (1024*1024), duplicates * 100);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0 || args[0].startsWith("--")) {
+      System.out.println("TreeGenerator directory [--shape=deep|wide|tiny|mixed] [--seed=n] [--depth=n] [--width=n] [--files=n] [--max-size=bytes] [--huge=n] [--huge-size=MB] [--duplicates=fraction]");
+      return;
+    }
+    var generator = fromArgs(args);
+    System.out.println("Generating " + generator + " in " + args[0] + ".");
+    long start = System.nanoTime();
+    generator.generate(Path.of(args[0]));
+    System.out.printf("%d directories, %d files (%d duplicates), %d MB in %.1f s.%n", generator.directories, generator.files,
+        generator.duplicateFiles, generator.bytes / (1024*1024), (System.nanoTime() - start) / 1e9);
+  }
+}
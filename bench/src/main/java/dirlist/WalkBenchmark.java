@@ -0,0 +1,61 @@
+package dirlist;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The sequential walk of a small tree (in the OS cache after the first walk) with and without the
+ * default PathFilter. The tree has nothing the filter excludes, so both walk the same entries and
+ * the difference is the cost of the filter's checks. The files are only listed, as for
+ * inMemoryDuplicates, so no hashing or db time is included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalkBenchmark {
+  @Param({"true", "false"})
+  boolean filtered;
+
+  Path tree;
+  DirList.Filewalker walker;
+
+  @Setup
+  public void setup() throws IOException {
+    tree = BenchFiles.tree(3, 6, 40); // 259 directories, about 10000 files
+    DirList.pathFilter = DirList.PathFilter.load("no-such-filter-file"); // the default rules
+    walker = DirList.x.new Filewalker(null, null);
+    walker.duplicateFinder = new DirList.DuplicateFinder();
+    if (!filtered) {
+      walker.filter = file -> true;
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    BenchFiles.delete(tree);
+  }
+
+  @Benchmark
+  public int walk() throws IOException {
+    walker.duplicateFinder.records.clear();
+    walker.walk(tree.toString());
+    return walker.duplicateFinder.records.count;
+  }
+}